@@ -0,0 +1,339 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a newly accepted connection is served, and serves it on a bounded pool of
+ * worker threads.
+ *
+ * Connections beyond what the workers can take wait in a bounded queue. When that queue is
+ * full, or the connection at its head has already waited longer than the configured limit, new
+ * connections are shed straight from the accept thread with a {@code 503 Service Unavailable}
+ * and a {@code Retry-After} based on the current wait, without ever reaching a worker. A queued
+ * connection whose own wait has grown too long by the time a worker picks it up is shed the same
+ * way, so the connections that are served do not pay for the backlog.
+ *
+ * An HTTPS client expects a TLS handshake, not plain text, so an HTTPS connection is only sent
+ * the 503 when it is shed by a worker after its handshake has completed, and then through its
+ * {@code TlsChannel}. Otherwise it is simply closed, since handshaking only to refuse the client
+ * would spend the CPU the server is short of.
+ *
+ * A keep-alive connection does not keep its worker between requests: it is parked on a selector
+ * and admitted again, like a new connection, once its next request starts to arrive, or closed
+ * if none arrives within its idle timeout. Only connections with a request in progress hold
+ * workers, so idle clients cannot crowd out new ones.
+ *
+ * The streams of HTTP/2 connections run on a second pool of the same size, as each connection's
+ * own worker waits on its streams and could otherwise be left waiting behind them in the queue.
+ */
+public class AdmissionController {
+    private static final long IDLE_SWEEP_MILLIS = 500;
+    private static final byte[] REJECT_HEAD = ("HTTP/1.1 503 Service Unavailable\r\n" +
+                                               "Retry-After: ").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] REJECT_TAIL = ("\r\n" +
+                                               "Content-Length: 0\r\n" +
+                                               "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private final ThreadPoolExecutor workers;
+    private final ThreadPoolExecutor streamWorkers;
+    private final long maxQueueWaitNanos;
+    private final AtomicLong shed = new AtomicLong();
+    private final Queue<ParkedConnection> parking = new ConcurrentLinkedQueue<>();
+    private Selector idleSelector;
+
+    /**
+     * A connection waiting for a worker, and when it started waiting.
+     */
+    private final class QueuedConnection implements Runnable {
+        final SocketChannel channel;
+        final TlsChannel tls;
+        final Runnable handler;
+        final Runnable onShed;
+        final long enqueuedAt = System.nanoTime();
+
+        QueuedConnection(SocketChannel channel, TlsChannel tls, Runnable handler, Runnable onShed) {
+            this.channel = channel;
+            this.tls = tls;
+            this.handler = handler;
+            this.onShed = onShed;
+        }
+
+        @Override
+        public void run() {
+            long waited = System.nanoTime() - enqueuedAt;
+            if (waited > maxQueueWaitNanos) {
+                // on a worker, so an established TLS connection can be answered through TLS
+                reject(channel, tls, true, waited, onShed);
+                return;
+            }
+            handler.run();
+        }
+    }
+
+    /**
+     * A keep-alive connection waiting, without a worker, for its next request.
+     */
+    private static final class ParkedConnection {
+        final SocketChannel channel;
+        final TlsChannel tls;
+        final Runnable handler;
+        final Runnable onClose;
+        final long idleTimeoutNanos;
+        final long parkedAt = System.nanoTime();
+
+        ParkedConnection(SocketChannel channel, TlsChannel tls, Runnable handler, Runnable onClose, long idleTimeoutMillis) {
+            this.channel = channel;
+            this.tls = tls;
+            this.handler = handler;
+            this.onClose = onClose;
+            this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        }
+    }
+
+    /**
+     * Constructs a controller and its worker pool.
+     *
+     * @param config The configuration holding the worker count, queue length and longest wait.
+     */
+    public AdmissionController(Configuration config) {
+        this.maxQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(config.maxQueueWaitMillis_);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(config.maxWorkers_, config.maxWorkers_, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, config.maxQueuedConnections_)),
+                runnable -> new Thread(runnable, "chirply-worker-" + threadNumber.incrementAndGet()));
+        this.workers.allowCoreThreadTimeOut(true);
+        AtomicInteger streamThreadNumber = new AtomicInteger();
+        this.streamWorkers = new ThreadPoolExecutor(config.maxWorkers_, config.maxWorkers_, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, config.maxQueuedConnections_)),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "chirply-h2-" + streamThreadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.streamWorkers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Serves a newly accepted connection on a worker, or sheds it if the server is overloaded.
+     * This never blocks, so it is safe to call from the accept loop.
+     *
+     * @param channel The accepted connection.
+     * @param tls     The connection's TLS layer, or {@code null} for plain HTTP.
+     * @param handler The code that serves the connection.
+     */
+    public void admit(SocketChannel channel, TlsChannel tls, Runnable handler) {
+        admit(channel, tls, handler, null);
+    }
+
+    private void admit(SocketChannel channel, TlsChannel tls, Runnable handler, Runnable onShed) {
+        long oldestWait = getOldestQueueWaitNanos();
+        if (oldestWait > maxQueueWaitNanos) {
+            reject(channel, tls, false, oldestWait, onShed);
+            return;
+        }
+        try {
+            workers.execute(new QueuedConnection(channel, tls, handler, onShed));
+        } catch (RejectedExecutionException e) {
+            // the queue is full
+            reject(channel, tls, false, Math.max(oldestWait, maxQueueWaitNanos), onShed);
+        }
+    }
+
+    /**
+     * Releases an idle keep-alive connection's worker until its next request starts to arrive.
+     * The connection is then admitted again as if it were new, so it may be shed. The channel
+     * is switched to non-blocking mode while it waits, and back before the handler runs.
+     *
+     * @param channel           The connection, with nothing left unread in the handler's
+     *                          buffers.
+     * @param tls               The connection's TLS layer, or {@code null} for plain HTTP.
+     * @param handler           The code that carries on serving the connection.
+     * @param idleTimeoutMillis How long to wait for the next request, or 0 for ever.
+     * @param onClose           Closes the connection if no request arrives in time, or if it is
+     *                          shed.
+     * @throws IOException If the channel cannot be switched to non-blocking mode.
+     */
+    public void park(SocketChannel channel, TlsChannel tls, Runnable handler, long idleTimeoutMillis, Runnable onClose) throws IOException {
+        Selector selector = startIdleSelector();
+        channel.configureBlocking(false);
+        parking.add(new ParkedConnection(channel, tls, handler, onClose, idleTimeoutMillis));
+        selector.wakeup();
+    }
+
+    /**
+     * Returns the pool that runs HTTP/2 streams. It rejects streams once its workers are busy
+     * and its queue is full.
+     *
+     * @return The stream pool.
+     */
+    public Executor getStreamWorkers() {
+        return streamWorkers;
+    }
+
+    /**
+     * Returns the number of connections being served right now. Idle keep-alive connections,
+     * which are parked without a worker, are not counted.
+     *
+     * @return The number of busy workers.
+     */
+    public int getInFlight() {
+        return workers.getActiveCount();
+    }
+
+    /**
+     * Returns the number of connections waiting for a worker.
+     *
+     * @return The queue length.
+     */
+    public int getQueued() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * Returns how many connections have been turned away since the server started.
+     *
+     * @return The number of connections shed.
+     */
+    public long getShedCount() {
+        return shed.get();
+    }
+
+    /**
+     * Returns how long the connection at the head of the queue has been waiting.
+     */
+    private long getOldestQueueWaitNanos() {
+        Runnable head = workers.getQueue().peek();
+        return head instanceof QueuedConnection ? System.nanoTime() - ((QueuedConnection) head).enqueuedAt : 0;
+    }
+
+    private synchronized Selector startIdleSelector() throws IOException {
+        if (idleSelector == null) {
+            idleSelector = Selector.open();
+            Thread thread = new Thread(this::watchIdleConnections, "chirply-idle-connections");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return idleSelector;
+    }
+
+    /**
+     * Runs on the idle connection thread: waits for parked connections to become readable, and
+     * closes those idle for too long.
+     */
+    private void watchIdleConnections() {
+        Selector selector = idleSelector;
+        List<ParkedConnection> ready = new ArrayList<>();
+        while (true) {
+            try {
+                ParkedConnection parked;
+                while ((parked = parking.poll()) != null) {
+                    try {
+                        parked.channel.register(selector, SelectionKey.OP_READ, parked);
+                    } catch (ClosedChannelException e) {
+                        parked.onClose.run();
+                    }
+                }
+                selector.select(IDLE_SWEEP_MILLIS);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    key.cancel();
+                    ready.add((ParkedConnection) key.attachment());
+                }
+                selector.selectedKeys().clear();
+                long now = System.nanoTime();
+                for (SelectionKey key : selector.keys()) {
+                    ParkedConnection idle = (ParkedConnection) key.attachment();
+                    if (key.isValid() && idle.idleTimeoutNanos > 0 && now - idle.parkedAt > idle.idleTimeoutNanos) {
+                        key.cancel();
+                        idle.onClose.run();
+                    }
+                }
+                if (ready.isEmpty()) {
+                    continue;
+                }
+                // the cancelled keys must be deregistered before the channels can block again
+                selector.selectNow();
+                for (ParkedConnection resumed : ready) {
+                    try {
+                        resumed.channel.configureBlocking(true);
+                    } catch (IOException e) {
+                        resumed.onClose.run();
+                        continue;
+                    }
+                    admit(resumed.channel, resumed.tls, resumed.handler, resumed.onClose);
+                }
+                ready.clear();
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Answers a connection with 503 and closes it, without reading its request. A TLS
+     * connection is only answered from a worker once its handshake is done, and is otherwise
+     * just closed.
+     *
+     * @param tls       The connection's TLS layer, or {@code null} for plain HTTP.
+     * @param onWorker  Whether this runs on a worker, which may block on a TLS write.
+     * @param waitNanos The current queue wait, from which the retry delay is worked out.
+     * @param onShed    Run once the connection is closed, or {@code null}.
+     */
+    private void reject(SocketChannel channel, TlsChannel tls, boolean onWorker, long waitNanos, Runnable onShed) {
+        shed.incrementAndGet();
+        try {
+            if (tls == null) {
+                // a fresh connection's send buffer is empty, so this small write does not wait
+                channel.configureBlocking(false);
+                channel.write(rejection(waitNanos));
+                channel.shutdownOutput();
+            } else if (onWorker && tls.isEstablished()) {
+                ByteBuffer response = rejection(waitNanos);
+                while (response.hasRemaining()) {
+                    tls.write(response);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+            if (onShed != null) {
+                onShed.run();
+            }
+        }
+    }
+
+    /**
+     * Renders the 503 response from its fixed head and tail around the retry delay.
+     */
+    private static ByteBuffer rejection(long waitNanos) {
+        long retryAfter = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos) + 1);
+        byte[] digits = new byte[20];
+        int start = digits.length;
+        do {
+            digits[--start] = (byte) ('0' + retryAfter % 10);
+            retryAfter /= 10;
+        } while (retryAfter > 0);
+        ByteBuffer response = ByteBuffer.allocate(REJECT_HEAD.length + digits.length - start + REJECT_TAIL.length);
+        response.put(REJECT_HEAD).put(digits, start, digits.length - start).put(REJECT_TAIL);
+        return response.flip();
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.Arrays;
+
+/**
+ * Parses the {@code Range} header of a request for part of a file, e.g.
+ * {@code bytes=0-499,1000-} or {@code bytes=-500}.
+ */
+public final class ByteRanges {
+    /** The most ranges served in one response; more than that are answered with the whole file. */
+    private static final int MAX_RANGES = 16;
+
+    private ByteRanges() {
+    }
+
+    /**
+     * Works out which bytes of a file a {@code Range} header asks for. Overlapping and adjacent
+     * ranges are merged, and ranges past the end of the file are dropped or shortened.
+     *
+     * @param header The header's value, or {@code null} if the request had none.
+     * @param size   The size of the file in bytes.
+     * @return Pairs of first and last byte offsets (inclusive) in ascending order, as
+     *         {@code {first0, last0, first1, last1, ...}}; an empty array if none of the ranges
+     *         overlaps the file; or {@code null} if the whole file should be sent instead, because
+     *         there was no header, it was malformed or not in bytes, or it asked for too many ranges.
+     */
+    public static long[] parse(String header, long size) {
+        if (header == null || !header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        long[] ranges = new long[specs.length * 2];
+        int count = 0;
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    // a suffix range: the last n bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix == 0 || size == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, size - suffix);
+                    last = size - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    last = dash == spec.length() - 1 ? size - 1 : Long.parseLong(spec.substring(dash + 1));
+                    if (first < 0 || (dash < spec.length() - 1 && last < first)) {
+                        return null;
+                    }
+                    if (first >= size) {
+                        continue;
+                    }
+                    last = Math.min(last, size - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            ranges[count++] = first;
+            ranges[count++] = last;
+        }
+        return merge(ranges, count);
+    }
+
+    /**
+     * Sorts ranges by their first byte and merges those that overlap or touch.
+     */
+    private static long[] merge(long[] ranges, int count) {
+        int pairs = count / 2;
+        Integer[] order = new Integer[pairs];
+        for (int i = 0; i < pairs; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(ranges[a * 2], ranges[b * 2]));
+        long[] merged = new long[count];
+        int n = 0;
+        for (int index : order) {
+            long first = ranges[index * 2];
+            long last = ranges[index * 2 + 1];
+            if (n > 0 && first <= merged[n - 1] + 1) {
+                merged[n - 1] = Math.max(merged[n - 1], last);
+            } else {
+                merged[n++] = first;
+                merged[n++] = last;
+            }
+        }
+        return Arrays.copyOf(merged, n);
+    }
+}
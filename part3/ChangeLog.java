@@ -0,0 +1,138 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded record of the most recent changes made to a {@code Store}, kept in a ring buffer so
+ * clients can catch up on what changed since a version they already have.
+ */
+public class ChangeLog {
+    /**
+     * The kinds of change that are recorded.
+     */
+    public enum Operation {
+        ADD("add"), UPDATE("update"), DELETE("delete");
+
+        private final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+
+        /**
+         * Returns the name used for the operation in JSON.
+         *
+         * @return The operation's label.
+         */
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /**
+     * One change: the store version it produced, what happened, and the chirp affected.
+     */
+    public static final class Change {
+        private final long version;
+        private final Operation operation;
+        private final int id;
+        private final Chirp chirp;
+
+        Change(long version, Operation operation, int id, Chirp chirp) {
+            this.version = version;
+            this.operation = operation;
+            this.id = id;
+            this.chirp = chirp;
+        }
+
+        /**
+         * Returns the store version this change produced.
+         *
+         * @return The version number.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Returns what kind of change this was.
+         *
+         * @return The operation.
+         */
+        public Operation getOperation() {
+            return operation;
+        }
+
+        /**
+         * Returns the ID of the chirp that changed.
+         *
+         * @return The chirp ID.
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Returns the chirp as it was after the change.
+         *
+         * @return The chirp, or {@code null} for a delete.
+         */
+        public Chirp getChirp() {
+            return chirp;
+        }
+    }
+
+    private final Change[] changes;
+    private long latest = 0;
+
+    /**
+     * Constructs a change log.
+     *
+     * @param capacity The number of most recent changes to keep.
+     */
+    public ChangeLog(int capacity) {
+        changes = new Change[capacity];
+    }
+
+    /**
+     * Records a change, giving it the next version number.
+     *
+     * @param operation What happened.
+     * @param id        The ID of the chirp that changed.
+     * @param chirp     The chirp after the change, or {@code null} for a delete.
+     * @return The recorded change, carrying its new version number.
+     */
+    public synchronized Change record(Operation operation, int id, Chirp chirp) {
+        latest++;
+        Change change = new Change(latest, operation, id, chirp);
+        changes[(int) Math.floorMod(latest, (long) changes.length)] = change;
+        return change;
+    }
+
+    /**
+     * Returns the version produced by the most recent change.
+     *
+     * @return The latest version, or 0 if nothing has changed yet.
+     */
+    public synchronized long getLatestVersion() {
+        return latest;
+    }
+
+    /**
+     * Returns the changes made after a version, oldest first.
+     *
+     * @param version The version the caller already has.
+     * @return The changes after that version, or {@code null} if the version is not one this log
+     *         produced or some of the changes have already been overwritten, and the caller has
+     *         to fetch everything again.
+     */
+    public synchronized List<Change> since(long version) {
+        if (version < 0 || version > latest || version < latest - changes.length) {
+            return null;
+        }
+        List<Change> result = new ArrayList<>((int) (latest - version));
+        for (long v = version + 1; v <= latest; v++) {
+            result.add(changes[(int) Math.floorMod(v, (long) changes.length)]);
+        }
+        return result;
+    }
+}
@@ -2,17 +2,28 @@ import javax.json.Json;
 import javax.json.JsonObject;
 
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 
 /**
  * Represents a social media post, called a "chirp", containing an ID, username, content, and timestamp.
+ *
+ * To keep many chirps in memory cheaply, the timestamp is held as epoch milliseconds (UTC), the
+ * content as UTF-8 bytes, and usernames are shared between chirps through an intern table.
+ * The table has a fixed number of slots picked by hash and a name simply replaces whatever held
+ * its slot, so it never grows with the number of users; a collision only costs some sharing.
  */
 public class Chirp {
+    private static final int USERNAME_SLOTS = 4096;
+    private static final String[] usernames = new String[USERNAME_SLOTS];
+
     private int id;
     private String username;
-    private String content;
-    private LocalDateTime posted_at;
+    private byte[] content;
+    private long posted_at;
+    private long version;
     /**
      * Constructs a new {@code Chirp} instance.
      *
@@ -22,10 +33,36 @@ public class Chirp {
      * @param postedAt The date and time the chirp was posted.
      */
     public Chirp(int id, String username, String content, LocalDateTime postedAt) {
+        this(id, username, content.getBytes(StandardCharsets.UTF_8), postedAt.toInstant(ZoneOffset.UTC).toEpochMilli());
+    }
+
+    /**
+     * Constructs a new {@code Chirp} instance from its compact representation.
+     *
+     * @param id             The unique identifier of the chirp.
+     * @param username       The username of the person posting the chirp.
+     * @param content        The content of the chirp as UTF-8 bytes. The array is not copied.
+     * @param postedAtMillis The time the chirp was posted, in milliseconds since the epoch (UTC).
+     */
+    public Chirp(int id, String username, byte[] content, long postedAtMillis) {
+        this(id, username, content, postedAtMillis, 1);
+    }
+
+    /**
+     * Constructs a new {@code Chirp} instance from its compact representation at a given version.
+     *
+     * @param id             The unique identifier of the chirp.
+     * @param username       The username of the person posting the chirp.
+     * @param content        The content of the chirp as UTF-8 bytes. The array is not copied.
+     * @param postedAtMillis The time the chirp was posted, in milliseconds since the epoch (UTC).
+     * @param version        The chirp's version, which starts at 1 and goes up on every update.
+     */
+    public Chirp(int id, String username, byte[] content, long postedAtMillis, long version) {
         this.id = id;
-        this.username = username;
+        this.username = intern(username);
         this.content = content;
-        this.posted_at = postedAt;
+        this.posted_at = postedAtMillis;
+        this.version = version;
     }
 
     /**
@@ -47,11 +84,36 @@ public class Chirp {
     }
 
     /**
-     * Returns the content of the chirp.
+     * Returns the content of the chirp. This decodes a new {@code String} on every call; code
+     * that only scans the text should use {@link #getContentChars()}.
      *
      * @return The chirp's content.
      */
     public String getContent() {
+        return new String(content, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the content of the chirp as characters without copying it when it is plain ASCII,
+     * which most chirps are; otherwise the content is decoded as by {@link #getContent()}.
+     *
+     * @return The chirp's content.
+     */
+    public CharSequence getContentChars() {
+        for (byte b : content) {
+            if (b < 0) {
+                return getContent();
+            }
+        }
+        return new AsciiChars(content, 0, content.length);
+    }
+
+    /**
+     * Returns the content of the chirp as UTF-8 bytes. The array must not be modified.
+     *
+     * @return The chirp's content bytes.
+     */
+    public byte[] getContentBytes() {
         return content;
     }
 
@@ -62,9 +124,48 @@ public class Chirp {
      * @return The chirp's posting time as a {@code LocalDateTime}.
      */
     public LocalDateTime getPostedAt() {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(posted_at, 1000L), (int) Math.floorMod(posted_at, 1000L) * 1_000_000, ZoneOffset.UTC);
+    }
+
+    /**
+     * Returns the time when the chirp was posted in milliseconds since the epoch (UTC).
+     *
+     * @return The chirp's posting time in epoch milliseconds.
+     */
+    public long getPostedAtMillis() {
         return posted_at;
     }
 
+    /**
+     * Returns the chirp's version. A new chirp is at version 1 and the store increases it by one
+     * every time the chirp is replaced.
+     *
+     * @return The chirp's version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns a copy of this chirp at another version, sharing the same content bytes.
+     *
+     * @param version The version of the copy.
+     * @return A {@code Chirp} identical to this one apart from its version.
+     */
+    public Chirp withVersion(long version) {
+        return new Chirp(id, username, content, posted_at, version);
+    }
+
+    /**
+     * Returns an HTTP entity tag identifying this version of the chirp, so clients can revalidate
+     * a cached chirp and make updates conditional on the version they last saw.
+     *
+     * @return A quoted entity tag, e.g. {@code "12-3"} for version 3 of chirp 12.
+     */
+    public String getETag() {
+        return "\"" + id + "-" + version + "\"";
+    }
+
     /**
      * Creates a {@code Chirp} instance from a JSON object.
      *
@@ -101,12 +202,113 @@ public class Chirp {
         JsonObject jsonObject = Json.createObjectBuilder()
                 .add("id", id)
                 .add("username", username)
-                .add("content", content)
-                .add("posted_at", posted_at.format(DateTimeFormatter.ISO_DATE_TIME))
+                .add("content", getContent())
+                .add("posted_at", formatPostedAt(posted_at))
                 .build();
         return jsonObject;
     }
 
+    /**
+     * Formats epoch milliseconds the same way {@code DateTimeFormatter.ISO_DATE_TIME} formats
+     * a {@code LocalDateTime}, without going through the formatter machinery.
+     *
+     * @param epochMillis The time in milliseconds since the epoch (UTC).
+     * @return The time as an ISO-8601 local date-time string, e.g. {@code 2024-10-01T13:00:00}.
+     */
+    public static String formatPostedAt(long epochMillis) {
+        long epochDay = Math.floorDiv(epochMillis, 86_400_000L);
+        int millisOfDay = (int) Math.floorMod(epochMillis, 86_400_000L);
+        LocalDateTime date = LocalDateTime.ofEpochSecond(epochDay * 86_400L, 0, ZoneOffset.UTC);
+        int year = date.getYear();
+        if (year < 0 || year > 9999) {
+            // outside four-digit years, fall back to the formatter's sign and padding rules
+            return LocalDateTime.ofEpochSecond(Math.floorDiv(epochMillis, 1000L), (int) Math.floorMod(epochMillis, 1000L) * 1_000_000, ZoneOffset.UTC)
+                    .format(DateTimeFormatter.ISO_DATE_TIME);
+        }
+        StringBuilder sb = new StringBuilder(23);
+        pad(sb, year, 4).append('-');
+        pad(sb, date.getMonthValue(), 2).append('-');
+        pad(sb, date.getDayOfMonth(), 2).append('T');
+        pad(sb, millisOfDay / 3_600_000, 2).append(':');
+        pad(sb, millisOfDay / 60_000 % 60, 2).append(':');
+        pad(sb, millisOfDay / 1000 % 60, 2);
+        int millis = millisOfDay % 1000;
+        if (millis != 0) {
+            sb.append('.');
+            if (millis % 100 == 0) {
+                sb.append(millis / 100);
+            } else if (millis % 10 == 0) {
+                pad(sb, millis / 10, 2);
+            } else {
+                pad(sb, millis, 3);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static StringBuilder pad(StringBuilder sb, int value, int width) {
+        String digits = Integer.toString(value);
+        for (int i = digits.length(); i < width; i++) {
+            sb.append('0');
+        }
+        return sb.append(digits);
+    }
+
+    /**
+     * Returns the shared instance of a username if its slot in the intern table holds it, and
+     * otherwise puts this one there. Strings are immutable, so racing writers are harmless.
+     */
+    private static String intern(String username) {
+        int slot = (username.hashCode() * 0x9E3779B9 >>> 20) & (USERNAME_SLOTS - 1);
+        String shared = usernames[slot];
+        if (username.equals(shared)) {
+            return shared;
+        }
+        usernames[slot] = username;
+        return username;
+    }
+
+    /**
+     * A read-only view of ASCII bytes as characters.
+     */
+    private static final class AsciiChars implements CharSequence {
+        private final byte[] bytes;
+        private final int start;
+        private final int end;
+
+        AsciiChars(byte[] bytes, int start, int end) {
+            this.bytes = bytes;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= end - start) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return (char) bytes[start + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            if (from < 0 || from > to || to > end - start) {
+                throw new IndexOutOfBoundsException(from + ".." + to);
+            }
+            return new AsciiChars(bytes, start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+    }
+
     /**
      * Converts this {@code Chirp} to a JSON string.
      *
@@ -0,0 +1,55 @@
+import java.util.Collection;
+
+/**
+ * The storage behind a {@code Store}. A backend only knows how to keep chirps by ID;
+ * ID allocation and the JSON handling stay in {@code Store}.
+ */
+public interface ChirpBackend {
+
+    /**
+     * Retrieves a chirp by its ID.
+     *
+     * @param id The ID of the chirp to retrieve.
+     * @return The {@code Chirp} with the specified ID, or {@code null} if there is none.
+     */
+    Chirp get(int id);
+
+    /**
+     * Stores a chirp under its own ID, replacing any chirp already stored with that ID.
+     *
+     * @param chirp The {@code Chirp} to store.
+     */
+    void put(Chirp chirp);
+
+    /**
+     * Removes a chirp by its ID.
+     *
+     * @param id The ID of the chirp to remove.
+     * @return The removed {@code Chirp}, or {@code null} if there was none.
+     */
+    Chirp remove(int id);
+
+    /**
+     * Checks whether a chirp with the given ID is stored.
+     *
+     * @param id The ID to look for.
+     * @return {@code true} if a chirp with that ID is stored.
+     */
+    boolean contains(int id);
+
+    /**
+     * Returns the number of stored chirps.
+     *
+     * @return The number of chirps in the backend.
+     */
+    int size();
+
+    /**
+     * Returns the stored chirps. The collection must not be modified, and must not change
+     * under a caller iterating it; backends that do not keep {@code Chirp} objects around
+     * build a snapshot of them.
+     *
+     * @return A collection of all stored chirps.
+     */
+    Collection<Chirp> values();
+}
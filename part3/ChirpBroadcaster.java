@@ -0,0 +1,275 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Pushes store changes to browsers subscribed to {@code GET /chirps/stream} as Server-Sent Events.
+ *
+ * Subscribers are non-blocking socket channels served by a single selector thread, so holding
+ * many open streams does not cost a thread each. Every subscriber has a bounded queue of encoded
+ * events; a client that falls so far behind that its queue fills up is disconnected, and its
+ * browser reconnects and catches up using {@code Last-Event-ID}.
+ */
+public class ChirpBroadcaster implements Runnable {
+    private static final int MAX_QUEUED_EVENTS = 1000;
+    private static final long HEARTBEAT_MILLIS = 15_000;
+    private static final ByteBuffer HEARTBEAT = ByteBuffer.wrap(": keep-alive\n\n".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+
+    private final Selector selector;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final Queue<Subscriber> pendingRegistrations = new ConcurrentLinkedQueue<>();
+
+    /**
+     * One open event stream and the events waiting to be written to it.
+     */
+    private static final class Subscriber {
+        final SocketChannel channel;
+        // encrypts events for an HTTPS connection; null for plain HTTP
+        final TlsChannel tls;
+        final Queue<ByteBuffer> queue = new ArrayDeque<>();
+        SelectionKey key;
+        boolean closed;
+
+        Subscriber(SocketChannel channel, TlsChannel tls) {
+            this.channel = channel;
+            this.tls = tls;
+        }
+    }
+
+    /**
+     * Constructs a broadcaster. Call {@link #start()} to begin serving subscribers.
+     *
+     * @throws IOException If the selector cannot be opened.
+     */
+    public ChirpBroadcaster() throws IOException {
+        selector = Selector.open();
+    }
+
+    /**
+     * Starts the selector thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this, "chirp-broadcaster");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Takes over a connection whose response headers have already been sent and streams events
+     * to it from now on.
+     *
+     * @param channel     The client's channel.
+     * @param store       The store being watched.
+     * @param lastEventId The last version the client saw, from {@code Last-Event-ID}, or
+     *                    {@code -1} if it is connecting for the first time.
+     * @throws IOException If the channel cannot be switched to non-blocking mode.
+     */
+    public void subscribe(SocketChannel channel, Store store, long lastEventId) throws IOException {
+        subscribe(channel, null, store, lastEventId);
+    }
+
+    /**
+     * Takes over a connection whose response headers have already been sent and streams events
+     * to it from now on.
+     *
+     * @param channel     The client's channel.
+     * @param tls         The connection's TLS layer, through which events are written, or
+     *                    {@code null} for plain HTTP.
+     * @param store       The store being watched.
+     * @param lastEventId The last version the client saw, from {@code Last-Event-ID}, or
+     *                    {@code -1} if it is connecting for the first time.
+     * @throws IOException If the channel cannot be switched to non-blocking mode.
+     */
+    public void subscribe(SocketChannel channel, TlsChannel tls, Store store, long lastEventId) throws IOException {
+        channel.configureBlocking(false);
+        Subscriber subscriber = new Subscriber(channel, tls);
+        // the store publishes while holding its own lock, so holding it here means no change
+        // can slip in between the backlog and the first live event
+        synchronized (store) {
+            if (lastEventId >= 0) {
+                List<ChangeLog.Change> backlog = store.getChangesSince(lastEventId);
+                if (backlog == null) {
+                    subscriber.queue.add(resync(store.getVersion()));
+                } else {
+                    for (ChangeLog.Change change : backlog) {
+                        subscriber.queue.add(encode(change));
+                    }
+                }
+            }
+            subscribers.add(subscriber);
+        }
+        pendingRegistrations.add(subscriber);
+        selector.wakeup();
+    }
+
+    /**
+     * Queues a change for every subscriber. This never blocks on the network.
+     *
+     * @param change The change to send.
+     */
+    public void publish(ChangeLog.Change change) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        ByteBuffer event = encode(change);
+        for (Subscriber subscriber : subscribers) {
+            enqueue(subscriber, event.duplicate());
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Returns the number of open streams.
+     *
+     * @return The subscriber count.
+     */
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    @Override
+    public void run() {
+        long lastHeartbeat = System.currentTimeMillis();
+        while (true) {
+            try {
+                selector.select(HEARTBEAT_MILLIS);
+
+                Subscriber registration;
+                while ((registration = pendingRegistrations.poll()) != null) {
+                    try {
+                        registration.key = registration.channel.register(selector, SelectionKey.OP_READ, registration);
+                    } catch (ClosedChannelException e) {
+                        close(registration);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Subscriber subscriber = (Subscriber) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            // browsers never send anything on an event stream, so a read means it closed
+                            if (subscriber.channel.read(ByteBuffer.allocate(256)) < 0) {
+                                close(subscriber);
+                            }
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        close(subscriber);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                boolean heartbeat = now - lastHeartbeat >= HEARTBEAT_MILLIS;
+                if (heartbeat) {
+                    lastHeartbeat = now;
+                }
+                for (Subscriber subscriber : subscribers) {
+                    if (heartbeat) {
+                        enqueue(subscriber, HEARTBEAT.duplicate());
+                    }
+                    flush(subscriber);
+                }
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+    private void enqueue(Subscriber subscriber, ByteBuffer event) {
+        synchronized (subscriber) {
+            if (subscriber.closed) {
+                return;
+            }
+            if (subscriber.queue.size() >= MAX_QUEUED_EVENTS) {
+                // too slow to keep up: drop it rather than buffer without bound
+                subscriber.closed = true;
+                subscriber.queue.clear();
+                return;
+            }
+            subscriber.queue.add(event);
+        }
+    }
+
+    /**
+     * Writes as much queued data as the socket accepts without blocking, and asks the selector
+     * to report when the rest can be written.
+     */
+    private void flush(Subscriber subscriber) {
+        if (subscriber.key == null) {
+            return;
+        }
+        try {
+            synchronized (subscriber) {
+                if (subscriber.closed) {
+                    close(subscriber);
+                    return;
+                }
+                ByteBuffer head;
+                while ((head = subscriber.queue.peek()) != null) {
+                    if (subscriber.tls != null) {
+                        subscriber.tls.write(head);
+                    } else {
+                        subscriber.channel.write(head);
+                    }
+                    if (head.hasRemaining()) {
+                        break;
+                    }
+                    subscriber.queue.poll();
+                }
+                // an encrypted event can be taken whole but only partly sent
+                boolean pending = !subscriber.queue.isEmpty() || (subscriber.tls != null && !subscriber.tls.flush());
+                int interest = pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+                subscriber.key.interestOps(interest);
+            }
+        } catch (IOException | CancelledKeyException e) {
+            close(subscriber);
+        }
+    }
+
+    private void close(Subscriber subscriber) {
+        synchronized (subscriber) {
+            subscriber.closed = true;
+            subscriber.queue.clear();
+        }
+        subscribers.remove(subscriber);
+        if (subscriber.key != null) {
+            subscriber.key.cancel();
+        }
+        try {
+            subscriber.channel.close();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    private static ByteBuffer resync(long version) {
+        String event = "id: " + version + "\n" +
+                       "event: resync\n" +
+                       "data: {}\n\n";
+        return ByteBuffer.wrap(event.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    private static ByteBuffer encode(ChangeLog.Change change) {
+        String data = change.getChirp() != null
+                ? change.getChirp().toJson()
+                : javax.json.Json.createObjectBuilder().add("id", change.getId()).build().toString();
+        String event = "id: " + change.getVersion() + "\n" +
+                       "event: " + change.getOperation().getLabel() + "\n" +
+                       "data: " + data + "\n\n";
+        return ByteBuffer.wrap(event.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+}
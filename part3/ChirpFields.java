@@ -0,0 +1,272 @@
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * A set of chirp fields to include in a response, as chosen with {@code ?fields=id,posted_at}.
+ *
+ * Chirps are written straight to JSON text with only the chosen fields, rather than building a
+ * full {@code JsonObject} and dropping fields from it. There is one instance per distinct field
+ * set, and each keeps the encoding of the whole local timeline for the store version it was made
+ * at, so repeated timeline requests between writes cost nothing to serialise.
+ */
+public final class ChirpFields {
+    private static final String[] NAMES = {"id", "username", "content", "posted_at"};
+    private static final int ID = 1, USERNAME = 2, CONTENT = 4, POSTED_AT = 8;
+    private static final ChirpFields[] BY_MASK = new ChirpFields[1 << NAMES.length];
+
+    static {
+        for (int mask = 0; mask < BY_MASK.length; mask++) {
+            BY_MASK[mask] = new ChirpFields(mask);
+        }
+    }
+
+    /** Every field, which is what is sent when no {@code fields} parameter is given. */
+    public static final ChirpFields ALL = BY_MASK[BY_MASK.length - 1];
+
+    private final int mask;
+    private volatile Timeline timeline;
+
+    /**
+     * The encoded local timeline and the store version it was encoded at.
+     */
+    private static final class Timeline {
+        final long version;
+        final String json;
+
+        Timeline(long version, String json) {
+            this.version = version;
+            this.json = json;
+        }
+    }
+
+    private ChirpFields(int mask) {
+        this.mask = mask;
+    }
+
+    /**
+     * Parses a comma-separated list of field names.
+     *
+     * @param fields The value of the {@code fields} parameter, or {@code null} if there was none.
+     * @return The matching field set; all fields if {@code fields} is {@code null} or names none.
+     * @throws IllegalArgumentException If a name is not a chirp field.
+     */
+    public static ChirpFields parse(String fields) {
+        if (fields == null) {
+            return ALL;
+        }
+        int mask = 0;
+        for (String field : fields.split(",")) {
+            field = field.trim().toLowerCase(Locale.ROOT);
+            if (field.isEmpty()) {
+                continue;
+            }
+            int bit = indexOf(field);
+            if (bit < 0) {
+                throw new IllegalArgumentException("Unknown field " + field + ", expected id, username, content or posted_at");
+            }
+            mask |= 1 << bit;
+        }
+        return mask == 0 ? ALL : BY_MASK[mask];
+    }
+
+    /**
+     * Writes one chirp as a JSON object holding only this set's fields, in the same order and
+     * form as {@link Chirp#toJsonObject()}.
+     *
+     * @param sb    The builder to append to.
+     * @param chirp The chirp to write.
+     * @return The builder.
+     */
+    public StringBuilder append(StringBuilder sb, Chirp chirp) {
+        sb.append('{');
+        boolean first = true;
+        if ((mask & ID) != 0) {
+            sb.append("\"id\":").append(chirp.getId());
+            first = false;
+        }
+        if ((mask & USERNAME) != 0) {
+            appendString(sb.append(first ? "" : ",").append("\"username\":"), chirp.getUsername());
+            first = false;
+        }
+        if ((mask & CONTENT) != 0) {
+            appendString(sb.append(first ? "" : ",").append("\"content\":"), chirp.getContentChars());
+            first = false;
+        }
+        if ((mask & POSTED_AT) != 0) {
+            appendString(sb.append(first ? "" : ",").append("\"posted_at\":"), Chirp.formatPostedAt(chirp.getPostedAtMillis()));
+        }
+        return sb.append('}');
+    }
+
+    /**
+     * Writes a chirp fetched from a federated server as {@link #append(StringBuilder, Chirp)}
+     * does, followed by a {@code server} member naming that server, so clients can tell it apart
+     * from a local chirp with the same ID.
+     *
+     * @param sb     The builder to append to.
+     * @param chirp  The chirp to write.
+     * @param server The federated server it came from.
+     * @return The builder.
+     */
+    public StringBuilder appendFederated(StringBuilder sb, Chirp chirp, String server) {
+        append(sb, chirp);
+        sb.setLength(sb.length() - 1);
+        appendString(sb.append(sb.charAt(sb.length() - 1) == '{' ? "" : ",").append("\"server\":"), server);
+        return sb.append('}');
+    }
+
+    /**
+     * Writes chirps as a JSON array.
+     *
+     * @param sb     The builder to append to.
+     * @param chirps The chirps to write, in order.
+     * @return The builder.
+     */
+    public StringBuilder appendArray(StringBuilder sb, Collection<Chirp> chirps) {
+        sb.append('[');
+        appendElements(sb, chirps);
+        return sb.append(']');
+    }
+
+    /**
+     * Returns one chirp as JSON text holding only this set's fields.
+     *
+     * @param chirp The chirp to write.
+     * @return The JSON text.
+     */
+    public String toJson(Chirp chirp) {
+        return append(new StringBuilder(), chirp).toString();
+    }
+
+    /**
+     * Returns the entity tag for this set's representation of a chirp. A projection is a different
+     * representation from the whole chirp, so it carries the field mask, e.g. {@code "12-3;f=5"},
+     * and a cached projection never revalidates as the full chirp or as another projection.
+     *
+     * @param chirp The chirp being sent.
+     * @return The chirp's own entity tag for all fields, otherwise a mask-specific one.
+     */
+    public String getETag(Chirp chirp) {
+        String etag = chirp.getETag();
+        if (this == ALL) {
+            return etag;
+        }
+        return etag.substring(0, etag.length() - 1) + ";f=" + mask + "\"";
+    }
+
+    /**
+     * Keeps only this set's fields of a chirp received as JSON, e.g. from a federated server.
+     *
+     * @param chirp The chirp as a JSON object.
+     * @return A JSON object holding only the chosen fields that the chirp has.
+     */
+    public JsonObject project(JsonObject chirp) {
+        if (this == ALL) {
+            return chirp;
+        }
+        JsonObjectBuilder projected = Json.createObjectBuilder();
+        for (int bit = 0; bit < NAMES.length; bit++) {
+            if ((mask & (1 << bit)) != 0 && chirp.containsKey(NAMES[bit])) {
+                projected.add(NAMES[bit], chirp.get(NAMES[bit]));
+            }
+        }
+        return projected.build();
+    }
+
+    /**
+     * Projects a chirp received as JSON from a federated server, as {@link #project(JsonObject)}
+     * does, and adds a {@code server} member naming that server.
+     *
+     * @param chirp  The chirp as a JSON object.
+     * @param server The federated server it came from.
+     * @return A JSON object holding the chosen fields and the server.
+     */
+    public JsonObject projectFederated(JsonObject chirp, String server) {
+        return Json.createObjectBuilder(project(chirp)).add("server", server).build();
+    }
+
+    /**
+     * Returns every local chirp encoded with this set's fields, as the comma-separated elements
+     * of a JSON array without the surrounding brackets. The encoding is reused until the store
+     * changes.
+     *
+     * @param store   The store to encode.
+     * @param version The store version read before calling, as from {@link Store#getVersion()}.
+     * @return The encoded chirps.
+     */
+    public String getTimelineElements(Store store, long version) {
+        Timeline cached = timeline;
+        if (cached != null && cached.version == version) {
+            return cached.json;
+        }
+        // the snapshot is at least as new as version, which is all delta sync needs
+        String json = appendElements(new StringBuilder(), store.getAllChirps()).toString();
+        timeline = new Timeline(version, json);
+        return json;
+    }
+
+    private StringBuilder appendElements(StringBuilder sb, Collection<Chirp> chirps) {
+        boolean first = true;
+        for (Chirp chirp : chirps) {
+            if (!first) {
+                sb.append(',');
+            }
+            append(sb, chirp);
+            first = false;
+        }
+        return sb;
+    }
+
+    private static int indexOf(String field) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equals(field)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Appends a JSON string literal, escaped the same way as the {@code javax.json} generator.
+     */
+    private static void appendString(StringBuilder sb, CharSequence value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\b':
+                    sb.append("\\b");
+                    break;
+                case '\f':
+                    sb.append("\\f");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        sb.append('"');
+    }
+}
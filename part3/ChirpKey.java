@@ -0,0 +1,62 @@
+/**
+ * Orders chirps by posting time, with the chirp ID breaking ties, for the store's sorted indexes.
+ */
+public final class ChirpKey implements Comparable<ChirpKey> {
+    private final long postedAt;
+    private final int id;
+
+    /**
+     * Constructs a key.
+     *
+     * @param postedAt The posting time in epoch milliseconds.
+     * @param id       The chirp ID.
+     */
+    public ChirpKey(long postedAt, int id) {
+        this.postedAt = postedAt;
+        this.id = id;
+    }
+
+    /**
+     * Constructs the key of a chirp.
+     *
+     * @param chirp The chirp.
+     * @return The chirp's key.
+     */
+    public static ChirpKey of(Chirp chirp) {
+        return new ChirpKey(chirp.getPostedAtMillis(), chirp.getId());
+    }
+
+    /**
+     * Returns the posting time.
+     *
+     * @return The posting time in epoch milliseconds.
+     */
+    public long getPostedAt() {
+        return postedAt;
+    }
+
+    /**
+     * Returns the chirp ID.
+     *
+     * @return The chirp ID.
+     */
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public int compareTo(ChirpKey other) {
+        int byTime = Long.compare(postedAt, other.postedAt);
+        return byTime != 0 ? byTime : Integer.compare(id, other.id);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof ChirpKey && compareTo((ChirpKey) other) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(postedAt) * 31 + id;
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * One update or delete in a bulk request, applied with others by
+ * {@link Store#applyMutations(java.util.List)}.
+ */
+public final class ChirpMutation {
+    /**
+     * What became of a mutation.
+     */
+    public enum Status {
+        /** The chirp was updated or deleted. */
+        APPLIED,
+        /** No chirp has the ID. */
+        NOT_FOUND,
+        /** The chirp is no longer at the version the mutation expected. */
+        CONFLICT
+    }
+
+    /**
+     * The result of applying one mutation.
+     */
+    public static final class Outcome {
+        private final Status status;
+        private final Chirp chirp;
+
+        Outcome(Status status, Chirp chirp) {
+            this.status = status;
+            this.chirp = chirp;
+        }
+
+        /**
+         * Returns whether the mutation was applied.
+         *
+         * @return The status.
+         */
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * Returns the chirp the mutation concerned: as stored after an update, as it was before a
+         * delete, or as it stands after a conflict.
+         *
+         * @return The chirp, or {@code null} if it was not found.
+         */
+        public Chirp getChirp() {
+            return chirp;
+        }
+    }
+
+    private final int id;
+    private final Chirp chirp;
+    private final long expectedVersion;
+
+    private ChirpMutation(int id, Chirp chirp, long expectedVersion) {
+        this.id = id;
+        this.chirp = chirp;
+        this.expectedVersion = expectedVersion;
+    }
+
+    /**
+     * Creates a mutation that replaces a chirp.
+     *
+     * @param chirp           The new chirp, whose ID says which chirp it replaces.
+     * @param expectedVersion The version the chirp must be at, or {@link Store#ANY_VERSION}.
+     * @return The mutation.
+     */
+    public static ChirpMutation update(Chirp chirp, long expectedVersion) {
+        return new ChirpMutation(chirp.getId(), chirp, expectedVersion);
+    }
+
+    /**
+     * Creates a mutation that deletes a chirp.
+     *
+     * @param id              The ID of the chirp to delete.
+     * @param expectedVersion The version the chirp must be at, or {@link Store#ANY_VERSION}.
+     * @return The mutation.
+     */
+    public static ChirpMutation delete(int id, long expectedVersion) {
+        return new ChirpMutation(id, null, expectedVersion);
+    }
+
+    /**
+     * Returns the ID of the chirp to change.
+     *
+     * @return The chirp ID.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the replacement chirp.
+     *
+     * @return The chirp, or {@code null} for a delete.
+     */
+    public Chirp getChirp() {
+        return chirp;
+    }
+
+    /**
+     * Returns whether this mutation deletes its chirp.
+     *
+     * @return {@code true} for a delete.
+     */
+    public boolean isDelete() {
+        return chirp == null;
+    }
+
+    /**
+     * Returns the version the chirp must be at for the mutation to apply.
+     *
+     * @return The version, or {@link Store#ANY_VERSION}.
+     */
+    public long getExpectedVersion() {
+        return expectedVersion;
+    }
+}
@@ -0,0 +1,82 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary layout used to keep a chirp outside the heap, shared by the off-heap arena and
+ * the on-disk segments of the tiered store.
+ *
+ * A record is laid out as: id (int), posted at in epoch milliseconds (long), version (long),
+ * username length (int), username UTF-8 bytes, content length (int), content UTF-8 bytes.
+ */
+public final class ChirpRecord {
+    private static final int FIXED_BYTES = 4 + 8 + 8 + 4 + 4;
+
+    private ChirpRecord() {
+    }
+
+    /**
+     * Returns the number of bytes a chirp takes up as a record.
+     *
+     * @param chirp The chirp to measure.
+     * @return The encoded length in bytes.
+     */
+    public static int length(Chirp chirp) {
+        return FIXED_BYTES + chirp.getUsername().getBytes(StandardCharsets.UTF_8).length + chirp.getContentBytes().length;
+    }
+
+    /**
+     * Returns the length of a record already written to a buffer.
+     *
+     * @param buffer The buffer holding the record.
+     * @param offset The position of the record in the buffer.
+     * @return The encoded length in bytes.
+     */
+    public static int length(ByteBuffer buffer, int offset) {
+        int usernameLength = buffer.getInt(offset + 20);
+        int contentLength = buffer.getInt(offset + 24 + usernameLength);
+        return FIXED_BYTES + usernameLength + contentLength;
+    }
+
+    /**
+     * Writes a chirp at the buffer's current position and advances the position past it.
+     *
+     * @param buffer The buffer to write to; it must have {@link #length(Chirp)} bytes remaining.
+     * @param chirp  The chirp to write.
+     */
+    public static void write(ByteBuffer buffer, Chirp chirp) {
+        byte[] username = chirp.getUsername().getBytes(StandardCharsets.UTF_8);
+        byte[] content = chirp.getContentBytes();
+        buffer.putInt(chirp.getId())
+              .putLong(chirp.getPostedAtMillis())
+              .putLong(chirp.getVersion())
+              .putInt(username.length)
+              .put(username)
+              .putInt(content.length)
+              .put(content);
+    }
+
+    /**
+     * Reads a chirp from a buffer without changing the buffer's position.
+     *
+     * @param buffer The buffer holding the record.
+     * @param offset The position of the record in the buffer.
+     * @return A new {@code Chirp} decoded from the record.
+     */
+    public static Chirp read(ByteBuffer buffer, int offset) {
+        int id = buffer.getInt(offset);
+        long postedAt = buffer.getLong(offset + 4);
+        long version = buffer.getLong(offset + 12);
+        int usernameLength = buffer.getInt(offset + 20);
+        String username = new String(readBytes(buffer, offset + 24, usernameLength), StandardCharsets.UTF_8);
+        int contentOffset = offset + 24 + usernameLength;
+        int contentLength = buffer.getInt(contentOffset);
+        byte[] content = readBytes(buffer, contentOffset + 4, contentLength);
+        return new Chirp(id, username, content, postedAt, version);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return bytes;
+    }
+}
@@ -1,41 +1,134 @@
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.util.Arrays;
 import java.util.List;
+import javax.net.ssl.SSLContext;
 
 public class ChirplyServer {
     protected int port;
     private String documentRoot;
     private Store storage;
     private List<String> federatedServers;
+    private ChirpBroadcaster broadcaster;
+    private RateLimiter rateLimiter;
+    private AdmissionController admission;
+    private ConnectionLimits limits;
+    private int tlsPort;
+    private SSLContext tlsContext;
 
     public ChirplyServer(int port, String documentRoot, List<String> federatedServers) {
+        this(port, documentRoot, federatedServers, new Store());
+    }
+
+    public ChirplyServer(int port, String documentRoot, List<String> federatedServers, Store storage) {
+        this(port, documentRoot, federatedServers, storage, new RateLimiter(new Configuration()));
+    }
+
+    public ChirplyServer(int port, String documentRoot, List<String> federatedServers, Store storage, RateLimiter rateLimiter) {
+        this(port, documentRoot, federatedServers, storage, rateLimiter, new AdmissionController(new Configuration()));
+    }
+
+    public ChirplyServer(int port, String documentRoot, List<String> federatedServers, Store storage, RateLimiter rateLimiter, AdmissionController admission) {
+        this(port, documentRoot, federatedServers, storage, rateLimiter, admission, new ConnectionLimits());
+    }
+
+    public ChirplyServer(int port, String documentRoot, List<String> federatedServers, Store storage, RateLimiter rateLimiter, AdmissionController admission, ConnectionLimits limits) {
         this.port = port;
         this.documentRoot = documentRoot;
         this.federatedServers = federatedServers;
-        storage = new Store();
+        this.storage = storage;
+        this.rateLimiter = rateLimiter;
+        this.admission = admission;
+        this.limits = limits;
+    }
+
+    /**
+     * Serves HTTPS on a second port as well as HTTP.
+     *
+     * @param tlsPort    The HTTPS port.
+     * @param tlsContext The TLS context holding the server's key and certificate.
+     */
+    public void setTls(int tlsPort, SSLContext tlsContext) {
+        this.tlsPort = tlsPort;
+        this.tlsContext = tlsContext;
     }
 
     public void startServer() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        // accept through a channel so that event-stream connections can be handed to the broadcaster's selector
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
             System.out.println("Server started on port " + port);
             loadChirps(documentRoot + "/chirps.json");
 
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                new Thread(new ClientHandler(clientSocket, documentRoot, storage, federatedServers)).start(); // Handle each client in a new thread
+            broadcaster = new ChirpBroadcaster();
+            storage.addChangeListener(broadcaster::publish);
+            broadcaster.start();
+
+            if (tlsContext != null) {
+                ServerSocketChannel tlsChannel = ServerSocketChannel.open();
+                tlsChannel.bind(new InetSocketAddress(tlsPort));
+                System.out.println("HTTPS server started on port " + tlsPort);
+                new Thread(() -> {
+                    try (ServerSocketChannel channel = tlsChannel) {
+                        acceptClients(channel, tlsContext);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }, "chirply-tls-accept").start();
             }
+
+            acceptClients(serverChannel, null);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Accepts connections for ever, handing each to a worker.
+     *
+     * @param tlsContext The TLS context if the port serves HTTPS, or {@code null} for HTTP.
+     */
+    private void acceptClients(ServerSocketChannel serverChannel, SSLContext tlsContext) throws IOException {
+        while (true) {
+            SocketChannel clientChannel = serverChannel.accept();
+            Socket clientSocket = clientChannel.socket();
+            // the handshake is left to the worker, so a slow client cannot hold up accepting
+            TlsChannel tls = null;
+            if (tlsContext != null) {
+                tls = new TlsChannel(clientChannel, tlsContext);
+                // handshake flights and records are each written whole, so waiting to coalesce
+                // small packets only adds delayed-ACK stalls between them
+                clientSocket.setTcpNoDelay(true);
+            }
+            // handle each client on a worker thread, or turn it away if the workers are backed up
+            admission.admit(clientChannel, tls, new ClientHandler(clientSocket, tls, documentRoot, storage, federatedServers, broadcaster, rateLimiter, limits, admission));
+        }
+    }
+
     public static void main(String[] args) {
         Configuration config = new Configuration("cs2003-C3.properties");
         List<String> federatedServers = Arrays.asList(config.federation_.split(","));
-        ChirplyServer server = new ChirplyServer(config.serverPort_, config.documentRoot_, federatedServers);
+        Store storage;
+        try {
+            storage = Store.create(config);
+        } catch (IOException e) {
+            System.out.println("Unable to create store: " + e.getMessage());
+            return;
+        }
+        ChirplyServer server = new ChirplyServer(config.serverPort_, config.documentRoot_, federatedServers, storage, new RateLimiter(config), new AdmissionController(config), new ConnectionLimits(config));
+        if (config.tlsPort_ > 0) {
+            try {
+                server.setTls(config.tlsPort_, TlsChannel.createServerContext(config));
+            } catch (IOException | GeneralSecurityException e) {
+                System.out.println("Unable to set up HTTPS: " + e.getMessage());
+                return;
+            }
+        }
         server.startServer();
     }
 
@@ -1,6 +1,7 @@
 import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
 
 import java.io.*;
@@ -8,154 +9,663 @@ import java.net.HttpURLConnection;
 import java.net.Socket;
 import java.net.URL;
 import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Locale;
+import java.util.Map;
 
 public class ClientHandler implements Runnable {
+    private static final int MAX_BATCH_SIZE = 1000;
+    // how long a worker waits for a keep-alive connection's next request before parking it
+    private static final int KEEP_ALIVE_LINGER_MILLIS = 2;
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static final String[] EVENT_STREAM_HEADERS = {"Cache-Control: no-cache", "Connection: keep-alive"};
+    private static final byte[] EVENT_STREAM_PREAMBLE = "retry: 3000\n\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int DEFAULT_SEARCH_LIMIT = 50;
+    private static final int MAX_SEARCH_LIMIT = 500;
+    private static final int DEFAULT_PAGE_LIMIT = 100;
+    private static final int MAX_PAGE_LIMIT = 1000;
+    private static final int DEFAULT_TRENDING_LIMIT = 10;
+    private static final int MAX_TRENDING_LIMIT = 100;
+
+    /**
+     * Handles one route. Routes are registered once for all connections, so the connection's
+     * {@code ClientHandler} is passed in.
+     */
+    @FunctionalInterface
+    private interface RouteHandler {
+        void handle(ClientHandler handler, HttpRequestParser request, Router.Match<RouteHandler> route, Map<String, String> query, ResponseWriter out) throws IOException;
+    }
+
+    private static final Router<RouteHandler> ROUTES = new Router<>();
+
+    static {
+        ROUTES.add("GET", "/chirps", (h, request, route, query, out) -> h.handleGetChirpsCollection(query, request, out));
+        ROUTES.add("POST", "/chirps", (h, request, route, query, out) -> h.handlePostChirps(request, out));
+        ROUTES.add("POST", "/chirps/batch", (h, request, route, query, out) -> h.handlePostChirpsBatch(request, out));
+        ROUTES.add("POST", "/chirps/bulk", (h, request, route, query, out) -> h.handlePostChirpsBulk(request, out));
+        ROUTES.add("GET", "/chirps/search", (h, request, route, query, out) -> h.handleSearchChirps(query, out));
+        ROUTES.add("GET", "/chirps/stream", (h, request, route, query, out) -> h.handleGetStream(request, out));
+        ROUTES.add("GET", "/chirps/trending", (h, request, route, query, out) -> h.handleGetTrending(query, out));
+        ROUTES.add("GET", "/chirps/{id}", (h, request, route, query, out) -> h.handleGetChirp(parseChirpId(route), query, request, out));
+        ROUTES.add("PUT", "/chirps/{id}", (h, request, route, query, out) -> h.updateChirps(request, out, parseChirpId(route)));
+        ROUTES.add("DELETE", "/chirps/{id}", (h, request, route, query, out) -> h.handleDeleteChirps(parseChirpId(route), out));
+    }
+
     private final Socket clientSocket;
+    private final TlsChannel tls;
     private final String documentRoot;
     private final Store storage;
     private final List<String> federatedServers;
+    private final ChirpBroadcaster broadcaster;
+    private final RateLimiter rateLimiter;
+    private final ConnectionLimits limits;
+    private final AdmissionController admission;
+    private boolean streaming = false;
+    // set up by the first run, and kept while the connection is parked between requests
+    private HttpRequestParser request;
+    private ResponseWriter out;
+    private ConnectionLimits.WriteTimer writeTimer;
+
+    public ClientHandler(Socket clientSocket, String documentRoot, Store storage, List<String> federatedServers, ChirpBroadcaster broadcaster, RateLimiter rateLimiter) {
+        this(clientSocket, null, documentRoot, storage, federatedServers, broadcaster, rateLimiter);
+    }
+
+    /**
+     * Constructs a handler for a connection.
+     *
+     * @param tls The connection's TLS layer if it came in on the HTTPS port, or {@code null} for
+     *            plain HTTP.
+     */
+    public ClientHandler(Socket clientSocket, TlsChannel tls, String documentRoot, Store storage, List<String> federatedServers, ChirpBroadcaster broadcaster, RateLimiter rateLimiter) {
+        this(clientSocket, tls, documentRoot, storage, federatedServers, broadcaster, rateLimiter, new ConnectionLimits());
+    }
 
-    public ClientHandler(Socket clientSocket, String documentRoot, Store storage, List<String> federatedServers) {
+    /**
+     * Constructs a handler for a connection.
+     *
+     * @param tls    The connection's TLS layer if it came in on the HTTPS port, or {@code null}
+     *               for plain HTTP.
+     * @param limits The timeouts and size limits the connection is held to.
+     */
+    public ClientHandler(Socket clientSocket, TlsChannel tls, String documentRoot, Store storage, List<String> federatedServers, ChirpBroadcaster broadcaster, RateLimiter rateLimiter, ConnectionLimits limits) {
+        this(clientSocket, tls, documentRoot, storage, federatedServers, broadcaster, rateLimiter, limits, null);
+    }
+
+    /**
+     * Constructs a handler for a connection.
+     *
+     * @param tls       The connection's TLS layer if it came in on the HTTPS port, or
+     *                  {@code null} for plain HTTP.
+     * @param limits    The timeouts and size limits the connection is held to.
+     * @param admission The controller that parks the connection between requests, so that it
+     *                  only holds a worker while a request is in progress, or {@code null} to
+     *                  keep the worker for the connection's whole life.
+     */
+    public ClientHandler(Socket clientSocket, TlsChannel tls, String documentRoot, Store storage, List<String> federatedServers, ChirpBroadcaster broadcaster, RateLimiter rateLimiter, ConnectionLimits limits, AdmissionController admission) {
         this.clientSocket = clientSocket;
+        this.tls = tls;
         this.documentRoot = documentRoot;
         this.storage = storage;
         this.federatedServers = federatedServers;
+        this.broadcaster = broadcaster;
+        this.rateLimiter = rateLimiter;
+        this.limits = limits;
+        this.admission = admission;
 
         String clientIP = clientSocket.getInetAddress().getHostAddress();
         System.out.printf("Client connected: client IP %s\n", clientIP);
     }
 
+    /**
+     * Serves the connection, or carries on serving it once its next request arrives after it
+     * was parked.
+     */
     @Override
     public void run() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-             OutputStream out = clientSocket.getOutputStream()) {
-            handleClient(in, out);
+        boolean parked = false;
+        try {
+            if (request == null) {
+                writeTimer = limits.watchWrites(clientSocket);
+                if (tls != null) {
+                    // a client that stalls the handshake gets no longer than one stalling a request
+                    tls.handshake(limits.getHeaderTimeoutMillis());
+                    request = new HttpRequestParser(Channels.newInputStream(tls), clientSocket, limits);
+                    out = new ResponseWriter(tls);
+                } else {
+                    request = new HttpRequestParser(clientSocket.getInputStream(), clientSocket, limits);
+                    out = new ResponseWriter(clientSocket);
+                }
+                out.setWriteTimer(writeTimer);
+            }
+            parked = handleClient();
         } catch (Exception e) {
             System.out.println(e.getMessage());
         } finally {
-            try {
+            // a parked connection may already be running on another worker, so is left alone
+            if (!parked) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Closes the connection, unless the broadcaster has taken it over.
+     */
+    private void close() {
+        if (writeTimer != null) {
+            writeTimer.close();
+        }
+        try {
+            if (streaming) {
+                return; // the broadcaster owns the connection now
+            }
+            if (tls != null) {
+                tls.close();
+            } else {
                 clientSocket.close();
-                System.out.printf("Client disconnected: client IP %s\n", clientSocket.getInetAddress().getHostName());
-            } catch (IOException e) {
-                System.out.println(e.getMessage());
             }
+            System.out.printf("Client disconnected: client IP %s\n", clientSocket.getInetAddress().getHostName());
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
         }
     }
 
-    private void handleClient(BufferedReader in, OutputStream out) throws IOException {
-        String requestLine;
-        while ((requestLine = in.readLine()) != null && !requestLine.isEmpty()) {
-            String[] requestParts = requestLine.split(" ");
-            if (requestParts.length >= 2) {
-                String method = requestParts[0];
-                String path = requestParts[1];
-                int chirpID;
-                
-                switch (method) {
-                    case "GET":
-                        if (path.equals("/chirps")) {
-                            handleGetChirps(out);
-                        } else {
-                            handleGetFile(path, out);
-                        }
-                        break;
-                    case "POST":
-                        if (path.equals("/chirps")) {
-                            handlePostChirps(in, out);
-                        }
-                        break;
-                    case "DELETE":
-                        chirpID = getChirpId(path);
-                        handleDeleteChirps(chirpID, out);
-                        break;
-                    case "PUT":
-                        chirpID = getChirpId(path);
-                        updateChirps(in, out, chirpID);
-                        break;
-                    default:
-                        sendResponse(out, 404, "Not Found", "404 Not Found", "text/plain");
-                        break;
+    /**
+     * Answers requests until the connection ends or falls idle.
+     *
+     * @return {@code true} if the connection was parked to wait for its next request without a
+     *         worker, or {@code false} if it should be closed.
+     */
+    private boolean handleClient() throws IOException {
+        while (!streaming) {
+            try {
+                if (!request.next()) {
+                    return false;
                 }
-            } else {
-                sendResponse(out, 400, "Bad Request", "Bad Request", "text/plain");
+                if (tls == null && switchToHttp2(request, writeTimer)) {
+                    return false;
+                }
+                if (!handleRequest(request, out)) {
+                    return false;
+                }
+            } catch (HttpRequestParser.BadRequestException e) {
+                // the parser has lost its place in the stream, so the connection has to be closed
+                sendResponse(out, e.getStatusCode(), e.getStatusMessage(), e.getMessage(), "text/plain", "Connection: close");
+                return false;
+            }
+            if (!streaming && admission != null && !request.awaitInput(KEEP_ALIVE_LINGER_MILLIS) && (tls == null || !tls.hasBufferedInput())) {
+                // nothing more has arrived, so the worker is released until something does
+                admission.park(clientSocket.getChannel(), tls, this, limits.getIdleTimeoutMillis(), this::close);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Serves the rest of the connection over HTTP/2 if the request starts it, either with the
+     * HTTP/2 connection preface or with an {@code Upgrade: h2c} request.
+     *
+     * @return {@code true} once the HTTP/2 connection has ended, or {@code false} if the request
+     *         is an ordinary HTTP/1.1 one, or HTTP/2 is not offered because this handler has no
+     *         admission controller to run streams on.
+     */
+    private boolean switchToHttp2(HttpRequestParser request, ConnectionLimits.WriteTimer writeTimer) throws IOException {
+        if (admission == null) {
+            // without an admission controller there is no bounded pool for the streams to run on
+            return false;
+        }
+        boolean preface = Http2Connection.isPreface(request);
+        if (!preface && !Http2Connection.isUpgrade(request)) {
+            return false;
+        }
+        Http2Connection connection = new Http2Connection(clientSocket.getChannel(), request.takeRemainingInput(),
+                                                         (r, o) -> handleRequest(r, o), admission.getStreamWorkers(), limits, writeTimer);
+        if (preface) {
+            connection.serveAfterPreface();
+        } else {
+            connection.serveAfterUpgrade(request);
+        }
+        return true;
+    }
+
+    /**
+     * Routes one parsed request to its handler.
+     *
+     * @return {@code false} if the connection should be closed after this request.
+     */
+    private boolean handleRequest(HttpRequestParser request, ResponseWriter out) throws IOException {
+        String method = request.getMethod();
+        String path = request.getPath();
+        Map<String, String> query = parseQuery(request.getQueryString());
+
+        long retryAfter = rateLimiter.tryAcquire(clientSocket.getInetAddress(), classifyRoute(method, path, query, request));
+        if (retryAfter > 0) {
+            // stop reading from a client that is over its limit rather than keep its connection open
+            sendResponse(out, 429, "Too Many Requests", "429 Too Many Requests", "text/plain",
+                         "Retry-After: " + retryAfter, "Connection: close");
+            return false;
+        }
+
+        // HEAD is answered with the headers a GET would get, which download tools use to find a
+        // file's size and whether it can be fetched in ranges
+        out.setHeadOnly(method.equals("HEAD"));
+        Router.Match<RouteHandler> route = ROUTES.route(method, path);
+        switch (route.getStatus()) {
+            case FOUND:
+                route.getHandler().handle(this, request, route, query, out);
+                break;
+            case METHOD_NOT_ALLOWED:
+                sendResponse(out, 405, "Method Not Allowed", "405 Method Not Allowed", "text/plain", "Allow: " + route.getAllowedMethods());
+                break;
+            default:
+                // anything that is not an API route is a file from the document root
+                if (method.equals("GET") || method.equals("HEAD")) {
+                    handleGetFile(path, request, out);
+                } else {
+                    sendResponse(out, 404, "Not Found", "404 Not Found", "text/plain");
+                }
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Picks the handler for {@code GET /chirps}, which serves several views selected by the
+     * query parameters.
+     */
+    private void handleGetChirpsCollection(Map<String, String> query, HttpRequestParser request, ResponseWriter out) throws IOException {
+        if (query.containsKey("since_version")) {
+            handleGetChanges(query.get("since_version"), out);
+        } else if (query.containsKey("since") || query.containsKey("until") || query.containsKey("cursor")) {
+            handleGetChirpsInRange(query, out);
+        } else if (query.containsKey("username")) {
+            handleGetUserChirps(query, out);
+        } else if (servesLocalTimeline(request)) {
+            handleGetChirpsBinary(out);
+        } else {
+            handleGetChirps(query, out);
+        }
+    }
+
+    /**
+     * Checks whether {@code GET /chirps} will fan out to the federated servers, which is whenever
+     * none of the indexed views is asked for, whatever other parameters come with it.
+     */
+    private static boolean servesFederatedTimeline(Map<String, String> query, HttpRequestParser request) {
+        return !query.containsKey("since_version")
+               && !query.containsKey("since") && !query.containsKey("until") && !query.containsKey("cursor")
+               && !query.containsKey("username")
+               && !servesLocalTimeline(request);
+    }
+
+    /**
+     * Checks whether a federated server is asking for the local timeline in the binary encoding.
+     */
+    private static boolean servesLocalTimeline(HttpRequestParser request) {
+        return ChirpCodec.isPreferred(request.getHeader("accept"));
+    }
+
+    /**
+     * Decides which rate limit budget a request is charged to. The full timeline fans out to every
+     * federated server, so it gets a much smaller budget than the indexed queries.
+     */
+    private RateLimiter.RouteClass classifyRoute(String method, String path, Map<String, String> query, HttpRequestParser request) {
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            return RateLimiter.RouteClass.WRITE;
+        }
+        if (path.equals("/chirps") && servesFederatedTimeline(query, request)) {
+            return RateLimiter.RouteClass.TIMELINE;
+        }
+        return RateLimiter.RouteClass.READ;
+    }
+
+    private Map<String, String> parseQuery(String queryString) {
+        Map<String, String> query = new HashMap<>();
+        for (String pair : queryString.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            try {
+                query.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+                // ignore malformed parameters rather than failing the whole request
+            }
+        }
+        return query;
+    }
+
+    private void handleGetChirp(int chirpID, Map<String, String> query, HttpRequestParser request, ResponseWriter out) throws IOException {
+        ChirpFields fields = parseFields(query, out);
+        if (fields == null) {
+            return;
+        }
+        Chirp chirp = storage.getChirp(chirpID);
+        if (chirp == null) {
+            sendResponse(out, 404, "Not Found", "Chirp not found", "text/plain");
+            return;
+        }
+        String etag = fields.getETag(chirp);
+        if (etagMatches(request.getHeader("if-none-match"), etag, true)) {
+            sendResponse(out, 304, "Not Modified", "", "application/json", "ETag: " + etag);
+        } else {
+            sendResponse(out, 200, "OK", fields.toJson(chirp), "application/json", "ETag: " + etag);
+        }
+    }
+
+    /**
+     * Checks an If-None-Match or If-Match header against a chirp's entity tag. If-Match needs a
+     * strong comparison, so weak tags only match when {@code allowWeak} is set.
+     */
+    private boolean etagMatches(String header, String etag, boolean allowWeak) {
+        if (header == null) {
+            return false;
+        }
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                if (!allowWeak) {
+                    continue;
+                }
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void handleGetUserChirps(Map<String, String> query, ResponseWriter out) throws IOException {
+        ChirpFields fields = parseFields(query, out);
+        if (fields == null) {
+            return;
+        }
+        StringBuilder responseJson = new StringBuilder("{\"chirps\":");
+        fields.appendArray(responseJson, storage.getChirpsByUser(query.get("username"))).append('}');
+        sendResponse(out, 200, "OK", responseJson.toString(), "application/json");
+    }
+
+    /**
+     * Reads the {@code fields} parameter, answering 400 if it names an unknown field.
+     *
+     * @return The requested fields, or {@code null} if a response has already been sent.
+     */
+    private ChirpFields parseFields(Map<String, String> query, ResponseWriter out) throws IOException {
+        try {
+            return ChirpFields.parse(query.get("fields"));
+        } catch (IllegalArgumentException e) {
+            sendResponse(out, 400, "Bad Request", e.getMessage(), "text/plain");
+            return null;
+        }
+    }
+
+    private void handleGetStream(HttpRequestParser request, ResponseWriter out) throws IOException {
+        if (request.getVersion().equals(Http2Connection.VERSION)) {
+            // the broadcaster writes events straight to a socket, which an HTTP/2 stream does not have
+            sendResponse(out, 505, "HTTP Version Not Supported", "Event streams need HTTP/1.1", "text/plain");
+            return;
+        }
+        long lastEventId = -1;
+        try {
+            if (request.hasHeader("last-event-id")) {
+                lastEventId = Long.parseLong(request.getHeader("last-event-id"));
+            }
+        } catch (NumberFormatException e) {
+            lastEventId = 0;
+        }
+
+        out.sendHead(200, "OK", "text/event-stream", EVENT_STREAM_HEADERS, EVENT_STREAM_PREAMBLE);
+
+        // hand the connection to the broadcaster so it does not hold on to this thread
+        broadcaster.subscribe(clientSocket.getChannel(), tls, storage, lastEventId);
+        streaming = true;
+    }
+
+    private void handleGetChanges(String sinceVersion, ResponseWriter out) throws IOException {
+        long version;
+        try {
+            version = Long.parseLong(sinceVersion);
+        } catch (NumberFormatException e) {
+            sendResponse(out, 400, "Bad Request", "since_version must be a number", "text/plain");
+            return;
+        }
+        if (version < 0) {
+            sendResponse(out, 400, "Bad Request", "since_version must not be negative", "text/plain");
+            return;
+        }
+
+        long current = storage.getVersion();
+        List<ChangeLog.Change> changes = storage.getChangesSince(version);
+        JsonObjectBuilder responseJson = javax.json.Json.createObjectBuilder();
+        if (changes == null) {
+            // too far behind to catch up from the change log, so the client must fetch /chirps again
+            responseJson.add("version", current).add("resync", true);
+        } else {
+            JsonArrayBuilder changeArray = javax.json.Json.createArrayBuilder();
+            for (ChangeLog.Change change : changes) {
+                JsonObjectBuilder changeJson = javax.json.Json.createObjectBuilder()
+                    .add("version", change.getVersion())
+                    .add("op", change.getOperation().getLabel())
+                    .add("id", change.getId());
+                if (change.getChirp() != null) {
+                    changeJson.add("chirp", change.getChirp().toJsonObject());
+                }
+                changeArray.add(changeJson);
+                current = change.getVersion();
+            }
+            responseJson.add("version", Math.max(current, version)).add("resync", false).add("changes", changeArray);
+        }
+        sendResponse(out, 200, "OK", responseJson.build().toString(), "application/json");
+    }
+
+    private void handleGetChirpsInRange(Map<String, String> query, ResponseWriter out) throws IOException {
+        ChirpFields fields = parseFields(query, out);
+        if (fields == null) {
+            return;
+        }
+        long since = Long.MIN_VALUE;
+        long until = Long.MAX_VALUE;
+        ChirpKey after = null;
+        int limit = DEFAULT_PAGE_LIMIT;
+        try {
+            if (query.containsKey("since")) {
+                since = parseTimestamp(query.get("since"));
+            }
+            if (query.containsKey("until")) {
+                until = parseTimestamp(query.get("until"));
+            }
+            if (query.containsKey("cursor")) {
+                String[] cursor = query.get("cursor").split(":");
+                after = new ChirpKey(Long.parseLong(cursor[0]), Integer.parseInt(cursor[1]));
+            }
+            if (query.containsKey("limit")) {
+                limit = Math.max(1, Math.min(MAX_PAGE_LIMIT, Integer.parseInt(query.get("limit"))));
             }
+        } catch (DateTimeParseException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            sendResponse(out, 400, "Bad Request", "since and until must be ISO date-times, cursor and limit as returned by the server", "text/plain");
+            return;
         }
+
+        // fetch one extra chirp to find out whether there is another page
+        List<Chirp> page = storage.getChirpsBetween(since, until, after, limit + 1);
+        StringBuilder responseJson = new StringBuilder("{\"chirps\":");
+        fields.appendArray(responseJson, page.subList(0, Math.min(limit, page.size())));
+        if (page.size() > limit) {
+            Chirp last = page.get(limit - 1);
+            responseJson.append(",\"next_cursor\":\"").append(last.getPostedAtMillis()).append(':').append(last.getId()).append('"');
+        }
+        responseJson.append('}');
+        sendResponse(out, 200, "OK", responseJson.toString(), "application/json");
     }
 
-    private void handleGetChirps(OutputStream out) throws IOException {
-        JsonObject localChirps = storage.getAllChirpsAsJson();
-        JsonArrayBuilder allChirps = javax.json.Json.createArrayBuilder();
+    private long parseTimestamp(String timestamp) {
+        return LocalDateTime.parse(timestamp, DateTimeFormatter.ISO_DATE_TIME).toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    private void handleGetTrending(Map<String, String> query, ResponseWriter out) throws IOException {
+        TrendingCounter.Window window = TrendingCounter.Window.fromLabel(query.getOrDefault("window", "1h"));
+        String type = query.getOrDefault("type", "tags");
+        if (window == null || !(type.equals("tags") || type.equals("mentions"))) {
+            sendResponse(out, 400, "Bad Request", "window must be 5m, 1h or 24h and type tags or mentions", "text/plain");
+            return;
+        }
+        int n = DEFAULT_TRENDING_LIMIT;
+        try {
+            if (query.containsKey("n")) {
+                n = Math.max(1, Math.min(MAX_TRENDING_LIMIT, Integer.parseInt(query.get("n"))));
+            }
+        } catch (NumberFormatException e) {
+            sendResponse(out, 400, "Bad Request", "n must be a number", "text/plain");
+            return;
+        }
+
+        JsonArrayBuilder terms = javax.json.Json.createArrayBuilder();
+        for (TrendingCounter.Count count : storage.getTrending(type.equals("mentions"), window, n)) {
+            terms.add(javax.json.Json.createObjectBuilder()
+                .add("term", count.getTerm())
+                .add("count", count.getCount()));
+        }
+        JsonObject responseJson = javax.json.Json.createObjectBuilder()
+            .add("window", window.getLabel())
+            .add(type, terms)
+            .build();
+        sendResponse(out, 200, "OK", responseJson.toString(), "application/json");
+    }
 
-        // Add local chirps
-        JsonArray localChirpsArray = localChirps.getJsonArray("chirps");
-        if (localChirpsArray != null) {
-            for (JsonValue chirp : localChirpsArray) {
-                allChirps.add(chirp); // Add each element to the builder
+    private void handleSearchChirps(Map<String, String> query, ResponseWriter out) throws IOException {
+        ChirpFields fields = parseFields(query, out);
+        if (fields == null) {
+            return;
+        }
+        String q = query.get("q");
+        if (q == null || q.isBlank()) {
+            sendResponse(out, 400, "Bad Request", "Missing search query q", "text/plain");
+            return;
+        }
+        int limit = DEFAULT_SEARCH_LIMIT;
+        try {
+            if (query.containsKey("limit")) {
+                limit = Math.max(1, Math.min(MAX_SEARCH_LIMIT, Integer.parseInt(query.get("limit"))));
             }
+        } catch (NumberFormatException e) {
+            sendResponse(out, 400, "Bad Request", "limit must be a number", "text/plain");
+            return;
         }
 
-        // Fetch federated chirps
+        StringBuilder responseJson = new StringBuilder("{\"chirps\":");
+        fields.appendArray(responseJson, storage.searchChirps(q, limit)).append('}');
+        sendResponse(out, 200, "OK", responseJson.toString(), "application/json");
+    }
+
+    private void handleGetChirps(Map<String, String> query, ResponseWriter out) throws IOException {
+        ChirpFields fields = parseFields(query, out);
+        if (fields == null) {
+            return;
+        }
+        // read the version first: changes racing with the snapshot are replayed by the next delta sync
+        long version = storage.getVersion();
+        StringBuilder responseJson = new StringBuilder()
+            .append("{\"version\":").append(version)
+            .append(",\"chirps\":[").append(fields.getTimelineElements(storage, version));
+        boolean empty = responseJson.charAt(responseJson.length() - 1) == '[';
+
+        // Fetch federated chirps, in the binary encoding from servers that offer it; each is
+        // tagged with its server, as its ID only identifies it there
         for (String server : federatedServers) {
             try {
                 URL url = new URL("http://" + server + "/chirps");
                 HttpURLConnection conn = (HttpURLConnection) url.openConnection();
                 conn.setRequestMethod("GET");
+                conn.setRequestProperty("Accept", ChirpCodec.ACCEPT);
 
                 // Add Via header for loop prevention
                 conn.addRequestProperty("Via", "localhost:" + 24477); ///// it shouldn't be hardcoded maybe use my initial and port
 
                 int status = conn.getResponseCode();
                 if (status == 200) {
-                    InputStream is = conn.getInputStream();
-                    JsonArray federatedChirps = javax.json.Json.createReader(is).readArray();
-                    for (JsonValue chirp : federatedChirps) {
-                        allChirps.add(chirp); // Add each federated chirp
+                    try (InputStream is = conn.getInputStream()) {
+                        String contentType = conn.getContentType();
+                        if (contentType != null && contentType.startsWith(ChirpCodec.MEDIA_TYPE)) {
+                            for (Chirp chirp : ChirpCodec.decode(is).getChirps()) {
+                                fields.appendFederated(empty ? responseJson : responseJson.append(','), chirp, server);
+                                empty = false;
+                            }
+                        } else {
+                            for (JsonValue chirp : readFederatedJson(is)) {
+                                // Add each federated chirp
+                                (empty ? responseJson : responseJson.append(',')).append(fields.projectFederated(chirp.asJsonObject(), server));
+                                empty = false;
+                            }
+                        }
                     }
                 }
             } catch (Exception e) {
                 // Add an error chirp for failed servers
-                allChirps.add(javax.json.Json.createObjectBuilder()
+                (empty ? responseJson : responseJson.append(',')).append(javax.json.Json.createObjectBuilder()
                     .add("id", -1)
                     .add("username", "Error")
                     .add("content", "Unable to fetch chirps from " + server)
-                    .add("timestamp", LocalDateTime.now().toString()));
+                    .add("server", server)
+                    .add("timestamp", LocalDateTime.now().toString())
+                    .build());
+                empty = false;
             }
         }
 
-        // Combine and send response
-        JsonObject responseJson = javax.json.Json.createObjectBuilder()
-            .add("chirps", allChirps.build())
-            .build();
-        sendResponse(out, 200, "OK", responseJson.toString(), "application/json");
-    }   
+        responseJson.append("]}");
+        sendResponse(out, 200, "OK", responseJson.toString(), "application/json", "Vary: Accept");
+    }
 
-    private void handlePostChirps(BufferedReader in, OutputStream out) throws IOException {
-        String line;
-        int contentLength = 0;
-    
-        // Parse headers to find Content-Length
-        while ((line = in.readLine()) != null && !line.isEmpty()) {
-            if (line.toLowerCase().startsWith("content-length:")) {
-                contentLength = Integer.parseInt(line.split(":")[1].trim());
-            }
+    /**
+     * Reads a federated server's JSON timeline, which is either a bare array of chirps or, from
+     * servers like this one, an object holding them under {@code chirps}.
+     */
+    private JsonArray readFederatedJson(InputStream is) {
+        JsonValue timeline = javax.json.Json.createReader(is).readValue();
+        if (timeline.getValueType() == JsonValue.ValueType.OBJECT) {
+            return timeline.asJsonObject().getJsonArray("chirps");
         }
-        
-        char[] body = new char[contentLength];
-        in.read(body, 0, contentLength);
+        return timeline.asJsonArray();
+    }
+
+    /**
+     * Sends the local timeline in the binary encoding, for a federated server. Only this
+     * server's own chirps are sent, not those it fetches from its own peers, so federation is
+     * one hop and cannot loop between servers that federate with each other.
+     */
+    private void handleGetChirpsBinary(ResponseWriter out) throws IOException {
+        long version = storage.getVersion();
+        out.send(200, "OK", ChirpCodec.MEDIA_TYPE, ChirpCodec.getTimeline(storage, version), "Vary: Accept");
+    }
+
+    private void handlePostChirps(HttpRequestParser request, ResponseWriter out) throws IOException {
+        String body = readRequestBody(request);
     
         try {
             // Parse JSON body
-            JsonObject requestBody = javax.json.Json.createReader(new StringReader(new String(body))).readObject();
+            JsonObject requestBody = javax.json.Json.createReader(new StringReader(body)).readObject();
     
             String username = requestBody.getString("username");
             String content = requestBody.getString("content");
     
             // Create and store the chirp
-            Chirp chirp = new Chirp(storage.findNextChirpId(), username, content, LocalDateTime.now());
+            Chirp chirp = new Chirp(storage.allocateChirpIds(1), username, content, LocalDateTime.now());
             storage.addChirp(chirp);
     
             // Send success response
@@ -165,53 +675,208 @@ public class ClientHandler implements Runnable {
             sendResponse(out, 400, "Bad Request", "Invalid JSON format", "text/plain");
         }
     }
-    
 
-    private void handleGetFile(String path, OutputStream out) throws IOException {
+    private void handlePostChirpsBatch(HttpRequestParser request, ResponseWriter out) throws IOException {
+        String body = readRequestBody(request);
+
+        JsonArray items;
+        try {
+            items = javax.json.Json.createReader(new StringReader(body)).readArray();
+        } catch (Exception e) {
+            sendResponse(out, 400, "Bad Request", "Expected a JSON array of chirps", "text/plain");
+            return;
+        }
+        if (items.size() > MAX_BATCH_SIZE) {
+            sendResponse(out, 413, "Payload Too Large", "At most " + MAX_BATCH_SIZE + " chirps per batch", "text/plain");
+            return;
+        }
+
+        // Validate every item first so the IDs can be allocated as one block
+        String[] usernames = new String[items.size()];
+        String[] contents = new String[items.size()];
+        int valid = 0;
+        for (int i = 0; i < items.size(); i++) {
+            try {
+                JsonObject item = items.getJsonObject(i);
+                usernames[i] = item.getString("username");
+                contents[i] = item.getString("content");
+                valid++;
+            } catch (Exception e) {
+                usernames[i] = null;
+            }
+        }
+
+        int nextId = storage.allocateChirpIds(valid);
+        LocalDateTime postedAt = LocalDateTime.now();
+        List<Chirp> chirps = new ArrayList<>(valid);
+        JsonArrayBuilder results = javax.json.Json.createArrayBuilder();
+        for (int i = 0; i < items.size(); i++) {
+            if (usernames[i] == null) {
+                results.add(javax.json.Json.createObjectBuilder()
+                    .add("status", 400)
+                    .add("error", "Each chirp needs a username and content"));
+            } else {
+                Chirp chirp = new Chirp(nextId++, usernames[i], contents[i], postedAt);
+                chirps.add(chirp);
+                results.add(javax.json.Json.createObjectBuilder()
+                    .add("status", 201)
+                    .add("chirp", chirp.toJsonObject()));
+            }
+        }
+        storage.addChirps(chirps);
+
+        JsonObject responseJson = javax.json.Json.createObjectBuilder()
+            .add("results", results)
+            .build();
+        sendResponse(out, 200, "OK", responseJson.toString(), "application/json");
+    }
+
+    /**
+     * Applies a list of updates and deletes, e.g.
+     * {@code [{"op":"update","id":4,"username":"u","content":"c","version":2},{"op":"delete","id":5}]},
+     * in one store operation. {@code version} is optional and works like {@code If-Match}. Each
+     * operation gets its own status, as the single-chirp PUT or DELETE would have given it.
+     */
+    private void handlePostChirpsBulk(HttpRequestParser request, ResponseWriter out) throws IOException {
+        String body = readRequestBody(request);
+
+        JsonArray items;
+        try {
+            items = javax.json.Json.createReader(new StringReader(body)).readArray();
+        } catch (Exception e) {
+            sendResponse(out, 400, "Bad Request", "Expected a JSON array of operations", "text/plain");
+            return;
+        }
+        if (items.size() > MAX_BATCH_SIZE) {
+            sendResponse(out, 413, "Payload Too Large", "At most " + MAX_BATCH_SIZE + " operations per request", "text/plain");
+            return;
+        }
+
+        // Parse every item first so the valid ones can be applied together
+        LocalDateTime now = LocalDateTime.now();
+        ChirpMutation[] parsed = new ChirpMutation[items.size()];
+        String[] errors = new String[items.size()];
+        List<ChirpMutation> mutations = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            try {
+                JsonObject item = items.getJsonObject(i);
+                int id = item.getInt("id");
+                long expectedVersion = Store.ANY_VERSION;
+                if (item.containsKey("version")) {
+                    // only a missing version means any version; versions start at 1
+                    expectedVersion = item.getJsonNumber("version").longValueExact();
+                    if (expectedVersion < 1) {
+                        errors[i] = "version must be a positive integer";
+                        continue;
+                    }
+                }
+                String op = item.getString("op");
+                if (op.equals("delete")) {
+                    parsed[i] = ChirpMutation.delete(id, expectedVersion);
+                } else if (op.equals("update")) {
+                    parsed[i] = ChirpMutation.update(new Chirp(id, item.getString("username"), item.getString("content"), now), expectedVersion);
+                } else {
+                    throw new IllegalArgumentException("Unknown op " + op);
+                }
+                mutations.add(parsed[i]);
+            } catch (Exception e) {
+                parsed[i] = null;
+            }
+        }
+
+        List<ChirpMutation.Outcome> outcomes = storage.applyMutations(mutations);
+        JsonArrayBuilder results = javax.json.Json.createArrayBuilder();
+        int next = 0;
+        for (int i = 0; i < items.size(); i++) {
+            if (parsed[i] == null) {
+                results.add(javax.json.Json.createObjectBuilder()
+                    .add("status", 400)
+                    .add("error", errors[i] != null ? errors[i]
+                        : "Each operation needs an op of update or delete, an id, and for an update a username and content"));
+                continue;
+            }
+            ChirpMutation.Outcome outcome = outcomes.get(next++);
+            JsonObjectBuilder result = javax.json.Json.createObjectBuilder().add("id", parsed[i].getId());
+            switch (outcome.getStatus()) {
+                case APPLIED:
+                    if (parsed[i].isDelete()) {
+                        result.add("status", 200);
+                    } else {
+                        result.add("status", 201).add("chirp", outcome.getChirp().toJsonObject());
+                    }
+                    break;
+                case NOT_FOUND:
+                    result.add("status", 404).add("error", "Chirp not found");
+                    break;
+                case CONFLICT:
+                    result.add("status", 412).add("error", "Chirp has been modified").add("version", outcome.getChirp().getVersion());
+                    break;
+            }
+            results.add(result);
+        }
+
+        JsonObject responseJson = javax.json.Json.createObjectBuilder()
+            .add("results", results)
+            .build();
+        sendResponse(out, 200, "OK", responseJson.toString(), "application/json");
+    }
+
+    private String readRequestBody(HttpRequestParser request) throws IOException {
+        // Content-Length counts bytes, so read exactly that many and only then decode
+        return new String(request.readBody(limits.getMaxBodyBytes()), StandardCharsets.UTF_8);
+    }
+
+    private void handleGetFile(String path, HttpRequestParser request, ResponseWriter out) throws IOException {
         if (path.equals("/")) {
             path = "/index.html";
         }
 
         File file = new File(documentRoot + path);
         if (file.exists() && file.isFile()) {
-            serveFile(file, out);
+            serveFile(file, request, out);
         } else {
             sendResponse(out, 404, "Not Found", "404 Not Found", "text/plain");
         }
     }
 
-    private void serveFile(File file, OutputStream out) throws IOException {
+    /**
+     * Sends a file, or just the byte ranges asked for with {@code Range}, so interrupted or
+     * parallel downloads can fetch only what they are missing. {@code If-Range} makes the range
+     * conditional on the file being unchanged, by entity tag or modification time.
+     */
+    private void serveFile(File file, HttpRequestParser request, ResponseWriter out) throws IOException {
         String mimeType = URLConnection.guessContentTypeFromName(file.getName());
-        long fileLength = file.length();
-        sendResponseHeaders(out, 200, "OK", mimeType, fileLength);
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            long modified = file.lastModified();
+            String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(modified) + "\"";
+            String lastModified = HTTP_DATE.format(Instant.ofEpochMilli(modified));
+            String[] validators = {"Accept-Ranges: bytes", "ETag: " + etag, "Last-Modified: " + lastModified};
 
-        BufferedInputStream fileInput = new BufferedInputStream(new FileInputStream(file));
-        byte[] buffer = new byte[8192];
-        int bytesRead;
-        while ((bytesRead = fileInput.read(buffer)) != -1) {
-            out.write(buffer, 0, bytesRead);
+            long[] ranges = null;
+            String ifRange = request.getHeader("if-range");
+            if (ifRange == null || ifRange.equals(etag) || ifRange.equals(lastModified)) {
+                ranges = ByteRanges.parse(request.getHeader("range"), size);
+            }
+            if (ranges == null) {
+                out.sendFile(200, "OK", mimeType, fileChannel, 0, size, validators);
+            } else if (ranges.length == 0) {
+                sendResponse(out, 416, "Range Not Satisfiable", "416 Range Not Satisfiable", "text/plain",
+                             "Content-Range: bytes */" + size, "Accept-Ranges: bytes");
+            } else if (ranges.length == 2) {
+                out.sendFile(206, "Partial Content", mimeType, fileChannel, ranges[0], ranges[1] - ranges[0] + 1,
+                             validators[0], validators[1], validators[2], "Content-Range: bytes " + ranges[0] + "-" + ranges[1] + "/" + size);
+            } else {
+                out.sendFileRanges(mimeType, fileChannel, size, ranges, validators);
+            }
         }
-        out.flush();
-        fileInput.close();
     }
 
-    private void sendResponseHeaders(OutputStream out, int statusCode, String statusMessage, String contentType, long contentLength) throws IOException {
-        String headers = "HTTP/1.1 " + statusCode + " " + statusMessage + "\r\n" +
-                         "Content-Type: " + contentType + "\r\n" +
-                         "Content-Length: " + contentLength + "\r\n\r\n";
-        out.write(headers.getBytes());
+    private void sendResponse(ResponseWriter out, int statusCode, String statusMessage, String body, String contentType, String... extraHeaders) throws IOException {
+        out.send(statusCode, statusMessage, contentType, body, extraHeaders);
     }
 
-    private void sendResponse(OutputStream out, int statusCode, String statusMessage, String body, String contentType) throws IOException {
-        String headers = "HTTP/1.1 " + statusCode + " " + statusMessage + "\r\n" +
-                         "Content-Type: " + contentType + "\r\n" +
-                         "Content-Length: " + body.length() + "\r\n\r\n";
-        out.write(headers.getBytes());
-        out.write(body.getBytes());
-        out.flush();
-    }
-
-    private void handleDeleteChirps(int chirpID, OutputStream out) throws IOException {
+    private void handleDeleteChirps(int chirpID, ResponseWriter out) throws IOException {
         if (storage.getChirp(chirpID) != null) {
             storage.deleteChirp(chirpID);
             sendResponse(out, 200, "OK", "Chirp deleted successfully", "text/plain");
@@ -221,51 +886,61 @@ public class ClientHandler implements Runnable {
     }
     
 
-    private int getChirpId(String path) {
-        String regex = "^/chirps/([^/]+)$";
-        Pattern pattern = Pattern.compile(regex);
-        Matcher matcher = pattern.matcher(path);
-
-        if(matcher.matches()) {
-            try {
-                return Integer.parseInt(matcher.group(1));
-            } catch (NumberFormatException e) {
-                return -1;
-            }
+    /**
+     * Reads the {@code id} path parameter.
+     *
+     * @return The chirp ID, or -1 if it is not a number, which no chirp has.
+     */
+    private static int parseChirpId(Router.Match<RouteHandler> route) {
+        try {
+            return Integer.parseInt(route.getParameter("id"));
+        } catch (NumberFormatException e) {
+            return -1;
         }
-        return -1;
-    }   
+    }
 
 
 
-    private void updateChirps(BufferedReader in, OutputStream out, int chirpID) throws IOException {
-        String line;
-        int contentLength = 0;
-    
-        // Parse headers to find Content-Length
-        while ((line = in.readLine()) != null && !line.isEmpty()) {
-            if (line.toLowerCase().startsWith("content-length:")) {
-                contentLength = Integer.parseInt(line.split(":")[1].trim());
-            }
-        }
-        
-        char[] body = new char[contentLength];
-        in.read(body, 0, contentLength);
+    private void updateChirps(HttpRequestParser request, ResponseWriter out, int chirpID) throws IOException {
+        String body = readRequestBody(request);
     
         try {
             // Parse JSON body
-            JsonObject requestBody = javax.json.Json.createReader(new StringReader(new String(body))).readObject();
+            JsonObject requestBody = javax.json.Json.createReader(new StringReader(body)).readObject();
     
             String username = requestBody.getString("username");
             String content = requestBody.getString("content");
-    
+
+            Chirp current = storage.getChirp(chirpID);
+            if (current == null) {
+                sendResponse(out, 404, "Not Found", "Chirp not found", "text/plain");
+                return;
+            }
+            // with If-Match, only replace the version the client last saw
+            long expectedVersion = Store.ANY_VERSION;
+            String ifMatch = request.getHeader("if-match");
+            if (ifMatch != null) {
+                if (!etagMatches(ifMatch, current.getETag(), false)) {
+                    sendResponse(out, 412, "Precondition Failed", "Chirp has been modified", "text/plain", "ETag: " + current.getETag());
+                    return;
+                }
+                expectedVersion = current.getVersion();
+            }
+
             // Create and store the chirp
-            Chirp chirp = new Chirp(chirpID, username, content, LocalDateTime.now());
-            storage.updateChirp(chirpID, chirp);
-    
+            Chirp chirp = storage.updateChirp(chirpID, new Chirp(chirpID, username, content, LocalDateTime.now()), expectedVersion);
+            if (chirp == null) {
+                Chirp latest = storage.getChirp(chirpID);
+                sendResponse(out, 412, "Precondition Failed", "Chirp has been modified", "text/plain",
+                             latest == null ? new String[0] : new String[] {"ETag: " + latest.getETag()});
+                return;
+            }
+
             // Send success response
             String responseBody = chirp.toJson().toString();
-            sendResponse(out, 201, "updated", responseBody, "application/json");
+            sendResponse(out, 201, "updated", responseBody, "application/json", "ETag: " + chirp.getETag());
+        } catch (IllegalArgumentException e) {
+            sendResponse(out, 404, "Not Found", "Chirp not found", "text/plain");
         } catch (Exception e) {
             sendResponse(out, 400, "Bad Request", "Invalid JSON format", "text/plain");
         }
@@ -21,6 +21,43 @@ public class Configuration
   public int        serverPort_=12345; // A default port value
   public String     documentRoot_;
   public String     federation_;
+  public String     storeBackend_ = "heap"; // "heap", "offheap" or "tiered"
+  public int        hotChirps_ = 100000; // tiered store: chirps kept in memory
+  public int        coldAfterSeconds_ = 86400; // tiered store: age at which chirps move to disk
+  public String     segmentDirectory_; // tiered store: null means a temporary directory
+  // per-client rate limits (requests per second and burst size) for each class of route
+  public int        rateLimitReadPerSecond_ = 50;
+  public int        rateLimitReadBurst_ = 100;
+  public int        rateLimitTimelinePerSecond_ = 2;
+  public int        rateLimitTimelineBurst_ = 10;
+  public int        rateLimitWritePerSecond_ = 5;
+  public int        rateLimitWriteBurst_ = 20;
+  // admission control: worker threads, connections allowed to wait for one, and the longest wait
+  public int        maxWorkers_ = 128;
+  public int        maxQueuedConnections_ = 256;
+  public int        maxQueueWaitMillis_ = 1000;
+  // HTTPS: port (0 for none), keystore holding the server's key and certificate, and TLS session resumption
+  public int        tlsPort_ = 0;
+  public String     keystore_;
+  public String     keystorePassword_;
+  public String     keystoreType_ = "PKCS12";
+  public int        tlsSessionCacheSize_ = 20480;
+  public int        tlsSessionTimeoutSeconds_ = 86400;
+  public boolean    tlsSessionTickets_ = true;
+  // slow clients: timeouts (0 for none), the slowest body rate, and the largest head and body
+  public int        idleTimeoutMillis_ = 15000;
+  public int        headerTimeoutMillis_ = 10000;
+  public int        bodyTimeoutMillis_ = 10000;
+  public int        minBodyBytesPerSecond_ = 1024;
+  public int        writeTimeoutMillis_ = 30000;
+  public int        maxHeaderBytes_ = 65536;
+  public int        maxBodyBytes_ = 8388608;
+
+  // only the defaults, without reading or printing a properties file
+  Configuration()
+  {
+    properties_ = new Properties();
+  }
 
   Configuration(String propertiesFile)
   {
@@ -50,6 +87,141 @@ public class Configuration
           federation_ = new String(s);
         }
 
+        if ((s = properties_.getProperty("storeBackend")) != null){
+          System.out.println(propertiesFile_ + " storeBackend: " + storeBackend_ + " -> " + s);
+          storeBackend_ = new String(s);
+        }
+
+        if ((s = properties_.getProperty("hotChirps")) != null){
+          System.out.println(propertiesFile_ + " hotChirps: " + hotChirps_ + " -> " + s);
+          hotChirps_ = Integer.parseInt(s);
+        }
+
+        if ((s = properties_.getProperty("coldAfterSeconds")) != null){
+          System.out.println(propertiesFile_ + " coldAfterSeconds: " + coldAfterSeconds_ + " -> " + s);
+          coldAfterSeconds_ = Integer.parseInt(s);
+        }
+
+        if ((s = properties_.getProperty("segmentDirectory")) != null){
+          System.out.println(propertiesFile_ + " segmentDirectory: " + segmentDirectory_ + " -> " + s);
+          segmentDirectory_ = new String(s);
+        }
+
+        if ((s = properties_.getProperty("rateLimitReadPerSecond")) != null){
+          System.out.println(propertiesFile_ + " rateLimitReadPerSecond: " + rateLimitReadPerSecond_ + " -> " + s);
+          rateLimitReadPerSecond_ = Integer.parseInt(s);
+        }
+
+        if ((s = properties_.getProperty("rateLimitReadBurst")) != null){
+          System.out.println(propertiesFile_ + " rateLimitReadBurst: " + rateLimitReadBurst_ + " -> " + s);
+          rateLimitReadBurst_ = Integer.parseInt(s);
+        }
+
+        if ((s = properties_.getProperty("rateLimitTimelinePerSecond")) != null){
+          System.out.println(propertiesFile_ + " rateLimitTimelinePerSecond: " + rateLimitTimelinePerSecond_ + " -> " + s);
+          rateLimitTimelinePerSecond_ = Integer.parseInt(s);
+        }
+
+        if ((s = properties_.getProperty("rateLimitTimelineBurst")) != null){
+          System.out.println(propertiesFile_ + " rateLimitTimelineBurst: " + rateLimitTimelineBurst_ + " -> " + s);
+          rateLimitTimelineBurst_ = Integer.parseInt(s);
+        }
+
+        if ((s = properties_.getProperty("rateLimitWritePerSecond")) != null){
+          System.out.println(propertiesFile_ + " rateLimitWritePerSecond: " + rateLimitWritePerSecond_ + " -> " + s);
+          rateLimitWritePerSecond_ = Integer.parseInt(s);
+        }
+
+        if ((s = properties_.getProperty("rateLimitWriteBurst")) != null){
+          System.out.println(propertiesFile_ + " rateLimitWriteBurst: " + rateLimitWriteBurst_ + " -> " + s);
+          rateLimitWriteBurst_ = Integer.parseInt(s);
+        }
+
+        if ((s = properties_.getProperty("maxWorkers")) != null){
+          System.out.println(propertiesFile_ + " maxWorkers: " + maxWorkers_ + " -> " + s);
+          maxWorkers_ = Integer.parseInt(s);
+        }
+
+        if ((s = properties_.getProperty("maxQueuedConnections")) != null){
+          System.out.println(propertiesFile_ + " maxQueuedConnections: " + maxQueuedConnections_ + " -> " + s);
+          maxQueuedConnections_ = Integer.parseInt(s);
+        }
+
+        if ((s = properties_.getProperty("maxQueueWaitMillis")) != null){
+          System.out.println(propertiesFile_ + " maxQueueWaitMillis: " + maxQueueWaitMillis_ + " -> " + s);
+          maxQueueWaitMillis_ = Integer.parseInt(s);
+        }
+
+        if ((s = properties_.getProperty("tlsPort")) != null){
+          System.out.println(propertiesFile_ + " tlsPort: " + tlsPort_ + " -> " + s);
+          tlsPort_ = Integer.parseInt(s);
+        }
+
+        if ((s = properties_.getProperty("keystore")) != null){
+          System.out.println(propertiesFile_ + " keystore: " + keystore_ + " -> " + s);
+          keystore_ = s;
+        }
+
+        if ((s = properties_.getProperty("keystorePassword")) != null){
+          System.out.println(propertiesFile_ + " keystorePassword: (not shown)");
+          keystorePassword_ = s;
+        }
+
+        if ((s = properties_.getProperty("keystoreType")) != null){
+          System.out.println(propertiesFile_ + " keystoreType: " + keystoreType_ + " -> " + s);
+          keystoreType_ = s;
+        }
+
+        if ((s = properties_.getProperty("tlsSessionCacheSize")) != null){
+          System.out.println(propertiesFile_ + " tlsSessionCacheSize: " + tlsSessionCacheSize_ + " -> " + s);
+          tlsSessionCacheSize_ = Integer.parseInt(s);
+        }
+
+        if ((s = properties_.getProperty("tlsSessionTimeoutSeconds")) != null){
+          System.out.println(propertiesFile_ + " tlsSessionTimeoutSeconds: " + tlsSessionTimeoutSeconds_ + " -> " + s);
+          tlsSessionTimeoutSeconds_ = Integer.parseInt(s);
+        }
+
+        if ((s = properties_.getProperty("tlsSessionTickets")) != null){
+          System.out.println(propertiesFile_ + " tlsSessionTickets: " + tlsSessionTickets_ + " -> " + s);
+          tlsSessionTickets_ = Boolean.parseBoolean(s);
+        }
+
+        if ((s = properties_.getProperty("idleTimeoutMillis")) != null){
+          System.out.println(propertiesFile_ + " idleTimeoutMillis: " + idleTimeoutMillis_ + " -> " + s);
+          idleTimeoutMillis_ = Integer.parseInt(s);
+        }
+
+        if ((s = properties_.getProperty("headerTimeoutMillis")) != null){
+          System.out.println(propertiesFile_ + " headerTimeoutMillis: " + headerTimeoutMillis_ + " -> " + s);
+          headerTimeoutMillis_ = Integer.parseInt(s);
+        }
+
+        if ((s = properties_.getProperty("bodyTimeoutMillis")) != null){
+          System.out.println(propertiesFile_ + " bodyTimeoutMillis: " + bodyTimeoutMillis_ + " -> " + s);
+          bodyTimeoutMillis_ = Integer.parseInt(s);
+        }
+
+        if ((s = properties_.getProperty("minBodyBytesPerSecond")) != null){
+          System.out.println(propertiesFile_ + " minBodyBytesPerSecond: " + minBodyBytesPerSecond_ + " -> " + s);
+          minBodyBytesPerSecond_ = Integer.parseInt(s);
+        }
+
+        if ((s = properties_.getProperty("writeTimeoutMillis")) != null){
+          System.out.println(propertiesFile_ + " writeTimeoutMillis: " + writeTimeoutMillis_ + " -> " + s);
+          writeTimeoutMillis_ = Integer.parseInt(s);
+        }
+
+        if ((s = properties_.getProperty("maxHeaderBytes")) != null){
+          System.out.println(propertiesFile_ + " maxHeaderBytes: " + maxHeaderBytes_ + " -> " + s);
+          maxHeaderBytes_ = Integer.parseInt(s);
+        }
+
+        if ((s = properties_.getProperty("maxBodyBytes")) != null){
+          System.out.println(propertiesFile_ + " maxBodyBytes: " + maxBodyBytes_ + " -> " + s);
+          maxBodyBytes_ = Integer.parseInt(s);
+        }
+
         p.close();
       }
 
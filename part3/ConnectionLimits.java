@@ -0,0 +1,236 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long a connection may take over each part of a request, and how large a request may be,
+ * so that a client which connects and then sends slowly, or not at all, cannot keep a worker
+ * thread for longer than the limits allow.
+ *
+ * Reads are bounded with the socket's read timeout, which {@link HttpRequestParser} sets before
+ * every read from what is left of the current limit: the idle time allowed between requests,
+ * the time allowed for a whole request head, or, for a body, the longest pause and the slowest
+ * average rate allowed. Blocking channel writes cannot time out, so a watchdog thread closes any
+ * connection whose write has been stuck for longer than the write timeout; writes are made at
+ * most {@link #MAX_TIMED_WRITE_BYTES} at a time so that a large download only needs to keep
+ * moving, not to finish, within the timeout.
+ */
+public final class ConnectionLimits {
+    /** The most bytes handed to one timed write. */
+    public static final int MAX_TIMED_WRITE_BYTES = 1024 * 1024;
+
+    private static final Set<WriteTimer> writeTimers = ConcurrentHashMap.newKeySet();
+    private static Thread watchdog;
+
+    private final int idleTimeoutMillis;
+    private final int headerTimeoutMillis;
+    private final int bodyTimeoutMillis;
+    private final int minBodyBytesPerSecond;
+    private final int writeTimeoutMillis;
+    private final int maxHeaderBytes;
+    private final int maxBodyBytes;
+
+    /**
+     * A connection's writes, watched so that a write the client stops reading does not block
+     * its thread forever. Call {@link #start()} before each write and {@link #stop()} after it.
+     */
+    public static final class WriteTimer implements Closeable {
+        private final Closeable connection;
+        private final long timeoutNanos;
+        private volatile long startedAt;
+
+        WriteTimer(Closeable connection, long timeoutNanos) {
+            this.connection = connection;
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        /**
+         * Marks the start of a write.
+         */
+        public void start() {
+            startedAt = System.nanoTime();
+        }
+
+        /**
+         * Marks the end of a write.
+         */
+        public void stop() {
+            startedAt = 0;
+        }
+
+        /**
+         * Stops watching the connection.
+         */
+        @Override
+        public void close() {
+            writeTimers.remove(this);
+        }
+
+        /**
+         * Closes the connection if its current write has run out of time, which makes the
+         * write fail.
+         */
+        private void check(long now) {
+            long started = startedAt;
+            if (started != 0 && now - started > timeoutNanos) {
+                System.out.println("Closing a connection whose client stopped reading");
+                writeTimers.remove(this);
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructs limits with the defaults from {@link Configuration}.
+     */
+    public ConnectionLimits() {
+        this(new Configuration());
+    }
+
+    /**
+     * Constructs limits from the configuration.
+     *
+     * @param config The configuration holding the timeouts, the minimum body rate and the
+     *               largest head and body.
+     */
+    public ConnectionLimits(Configuration config) {
+        this.idleTimeoutMillis = config.idleTimeoutMillis_;
+        this.headerTimeoutMillis = config.headerTimeoutMillis_;
+        this.bodyTimeoutMillis = config.bodyTimeoutMillis_;
+        this.minBodyBytesPerSecond = config.minBodyBytesPerSecond_;
+        this.writeTimeoutMillis = config.writeTimeoutMillis_;
+        this.maxHeaderBytes = config.maxHeaderBytes_;
+        this.maxBodyBytes = config.maxBodyBytes_;
+    }
+
+    /**
+     * Returns how long a connection may wait for the next request to start.
+     *
+     * @return The timeout in milliseconds, or 0 for none.
+     */
+    public int getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Returns how long a client may take to send a request's line and headers, counted from
+     * their first byte. The TLS handshake gets the same time.
+     *
+     * @return The timeout in milliseconds, or 0 for none.
+     */
+    public int getHeaderTimeoutMillis() {
+        return headerTimeoutMillis;
+    }
+
+    /**
+     * Returns how long a request body may pause between reads. A body also gets this long
+     * before its average rate is held to {@link #getMinBodyBytesPerSecond()}.
+     *
+     * @return The timeout in milliseconds, or 0 for none.
+     */
+    public int getBodyTimeoutMillis() {
+        return bodyTimeoutMillis;
+    }
+
+    /**
+     * Returns the slowest average rate a request body may arrive at.
+     *
+     * @return The rate in bytes per second, or 0 for no minimum.
+     */
+    public int getMinBodyBytesPerSecond() {
+        return minBodyBytesPerSecond;
+    }
+
+    /**
+     * Returns how long one write may block before the connection is closed. An HTTP/2 response
+     * also gets this long for the client to open its flow control window.
+     *
+     * @return The timeout in milliseconds, or 0 for none.
+     */
+    public int getWriteTimeoutMillis() {
+        return writeTimeoutMillis;
+    }
+
+    /**
+     * Returns the largest request line and headers accepted.
+     *
+     * @return The limit in bytes.
+     */
+    public int getMaxHeaderBytes() {
+        return maxHeaderBytes;
+    }
+
+    /**
+     * Returns the largest request body accepted.
+     *
+     * @return The limit in bytes.
+     */
+    public int getMaxBodyBytes() {
+        return maxBodyBytes;
+    }
+
+    /**
+     * Starts watching a connection's writes.
+     *
+     * @param connection What to close when a write runs out of time.
+     * @return The timer to start and stop around each write, or {@code null} if writes have no
+     *         timeout.
+     */
+    public WriteTimer watchWrites(Closeable connection) {
+        if (writeTimeoutMillis <= 0) {
+            return null;
+        }
+        startWatchdog();
+        WriteTimer timer = new WriteTimer(connection, TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis));
+        writeTimers.add(timer);
+        return timer;
+    }
+
+    /**
+     * Works out the read timeout for the next read of a request body.
+     *
+     * @param startedAt When the body started, from {@link System#nanoTime()}.
+     * @param received  How many body bytes have arrived so far.
+     * @return The timeout in milliseconds, 0 for none, or negative if the body has already
+     *         fallen below the minimum rate.
+     */
+    public long bodyReadTimeout(long startedAt, long received) {
+        if (minBodyBytesPerSecond <= 0) {
+            return bodyTimeoutMillis;
+        }
+        // the next byte must arrive while the average since the grace period is still fast enough
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+        long allowed = bodyTimeoutMillis + (received + 1) * 1000 / minBodyBytesPerSecond - elapsed;
+        if (allowed <= 0) {
+            return -1;
+        }
+        return bodyTimeoutMillis > 0 ? Math.min(allowed, bodyTimeoutMillis) : allowed;
+    }
+
+    private static synchronized void startWatchdog() {
+        if (watchdog != null) {
+            return;
+        }
+        watchdog = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long now = System.nanoTime();
+                for (WriteTimer timer : writeTimers) {
+                    timer.check(now);
+                }
+            }
+        }, "chirply-write-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+}
@@ -0,0 +1,45 @@
+import java.util.Collection;
+
+/**
+ * The default {@code ChirpBackend}, keeping every chirp as an object on the heap.
+ *
+ * The chirps are held in a {@code PersistentChirpMap}. Every write publishes a new version of
+ * the map, so readers never take a lock and {@link #values()} hands out the current version
+ * as an immutable snapshot without copying it.
+ */
+public class HeapChirpBackend implements ChirpBackend {
+    private volatile PersistentChirpMap chirpStore = PersistentChirpMap.EMPTY;
+
+    @Override
+    public Chirp get(int id) {
+        return chirpStore.get(id);
+    }
+
+    @Override
+    public synchronized void put(Chirp chirp) {
+        chirpStore = chirpStore.with(chirp);
+    }
+
+    @Override
+    public synchronized Chirp remove(int id) {
+        PersistentChirpMap current = chirpStore;
+        Chirp removed = current.get(id);
+        chirpStore = current.without(id);
+        return removed;
+    }
+
+    @Override
+    public boolean contains(int id) {
+        return chirpStore.get(id) != null;
+    }
+
+    @Override
+    public int size() {
+        return chirpStore.size();
+    }
+
+    @Override
+    public Collection<Chirp> values() {
+        return chirpStore;
+    }
+}
@@ -0,0 +1,551 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * HPACK, the header compression used by HTTP/2 (RFC 7541).
+ *
+ * Header names and values are handled as ISO-8859-1, one char per byte, so they pass through
+ * unchanged whatever bytes the client sent.
+ */
+public final class Hpack {
+    /**
+     * Thrown when a header block cannot be decoded. The connection's decoding state is then
+     * unknown, so the connection has to be closed.
+     */
+    public static final class CompressionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CompressionException(String message) {
+            super(message);
+        }
+    }
+
+    /** The largest dynamic table the decoder allows, which is the HTTP/2 default. */
+    public static final int DEFAULT_TABLE_SIZE = 4096;
+
+    // RFC 7541 appendix A; entry i is index i + 1
+    private static final String[][] STATIC_TABLE = {
+        {":authority", ""},
+        {":method", "GET"},
+        {":method", "POST"},
+        {":path", "/"},
+        {":path", "/index.html"},
+        {":scheme", "http"},
+        {":scheme", "https"},
+        {":status", "200"},
+        {":status", "204"},
+        {":status", "206"},
+        {":status", "304"},
+        {":status", "400"},
+        {":status", "404"},
+        {":status", "500"},
+        {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"},
+        {"accept-language", ""},
+        {"accept-ranges", ""},
+        {"accept", ""},
+        {"access-control-allow-origin", ""},
+        {"age", ""},
+        {"allow", ""},
+        {"authorization", ""},
+        {"cache-control", ""},
+        {"content-disposition", ""},
+        {"content-encoding", ""},
+        {"content-language", ""},
+        {"content-length", ""},
+        {"content-location", ""},
+        {"content-range", ""},
+        {"content-type", ""},
+        {"cookie", ""},
+        {"date", ""},
+        {"etag", ""},
+        {"expect", ""},
+        {"expires", ""},
+        {"from", ""},
+        {"host", ""},
+        {"if-match", ""},
+        {"if-modified-since", ""},
+        {"if-none-match", ""},
+        {"if-range", ""},
+        {"if-unmodified-since", ""},
+        {"last-modified", ""},
+        {"link", ""},
+        {"location", ""},
+        {"max-forwards", ""},
+        {"proxy-authenticate", ""},
+        {"proxy-authorization", ""},
+        {"range", ""},
+        {"referer", ""},
+        {"refresh", ""},
+        {"retry-after", ""},
+        {"server", ""},
+        {"set-cookie", ""},
+        {"strict-transport-security", ""},
+        {"transfer-encoding", ""},
+        {"user-agent", ""},
+        {"vary", ""},
+        {"via", ""},
+        {"www-authenticate", ""},
+    };
+
+    // RFC 7541 appendix B: the code and bit length of each byte value
+    private static final int[] HUFFMAN_CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+        0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+        0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+        0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+        0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+        0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+        0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+        0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+        0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+        0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+        0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+        0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+        0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+        0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+        0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+        0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+        0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+        0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+        0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+        0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+        0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+        0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+        0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+        0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+        0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+        0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+        0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+        0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+        0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+        0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+        0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+        0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+    };
+
+    // the Huffman code as a binary tree: node n's children are at 2n and 2n + 1, holding the
+    // child node's number, or a byte value + 256 at a leaf, or 0 where no code goes
+    private static final int[] HUFFMAN_TREE;
+
+    // static table indexes of exact name and value pairs, and of names
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+    static {
+        int[] tree = new int[2 * 512];
+        int nodes = 1;
+        for (int symbol = 0; symbol < 256; symbol++) {
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int slot = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+                if (bit == 0) {
+                    tree[slot] = 256 + symbol;
+                } else {
+                    if (tree[slot] == 0) {
+                        tree[slot] = nodes++;
+                    }
+                    node = tree[slot];
+                }
+            }
+        }
+        HUFFMAN_TREE = tree;
+
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_FIELDS.put(STATIC_TABLE[i][0] + ':' + STATIC_TABLE[i][1], i + 1);
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * Decodes the header blocks of one connection. Blocks must be decoded in the order they
+     * arrived, since each can change the table the next one refers to.
+     */
+    public static final class Decoder {
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+        private final int maxHeaderListSize;
+
+        /**
+         * Constructs a decoder.
+         *
+         * @param maxHeaderListSize The largest header list accepted, counted as RFC 7540 does:
+         *                          name and value lengths plus 32 per field.
+         */
+        public Decoder(int maxHeaderListSize) {
+            this.maxHeaderListSize = maxHeaderListSize;
+        }
+
+        /**
+         * Decodes a complete header block.
+         *
+         * @param block  The bytes holding the block.
+         * @param offset Where the block starts.
+         * @param length The block's length.
+         * @return The fields as name and value pairs, in order.
+         * @throws CompressionException If the block is malformed or too large.
+         */
+        public List<String[]> decode(byte[] block, int offset, int length) throws CompressionException {
+            Reader in = new Reader(block, offset, offset + length);
+            List<String[]> fields = new ArrayList<>();
+            int listSize = 0;
+            boolean fieldSeen = false;
+            while (in.hasMore()) {
+                int b = in.peek();
+                String[] field;
+                if ((b & 0x80) != 0) {
+                    field = lookup(in.readInteger(7));
+                } else if ((b & 0x40) != 0) {
+                    field = readLiteral(in, 6);
+                    table.add(field[0], field[1]);
+                } else if ((b & 0x20) != 0) {
+                    // a table size update may only come before the first field
+                    if (fieldSeen) {
+                        throw new CompressionException("Table size update after a header field");
+                    }
+                    int size = in.readInteger(5);
+                    if (size > DEFAULT_TABLE_SIZE) {
+                        throw new CompressionException("Table size update above the limit");
+                    }
+                    table.setMaxSize(size);
+                    continue;
+                } else {
+                    field = readLiteral(in, 4);
+                }
+                fieldSeen = true;
+                listSize += field[0].length() + field[1].length() + 32;
+                if (listSize > maxHeaderListSize) {
+                    throw new CompressionException("Header list too large");
+                }
+                fields.add(field);
+            }
+            return fields;
+        }
+
+        private String[] readLiteral(Reader in, int prefix) throws CompressionException {
+            int index = in.readInteger(prefix);
+            String name = index == 0 ? in.readString() : lookup(index)[0];
+            return new String[] {name, in.readString()};
+        }
+
+        private String[] lookup(int index) throws CompressionException {
+            if (index <= 0) {
+                throw new CompressionException("Invalid header index " + index);
+            }
+            if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            String[] field = table.get(index - STATIC_TABLE.length - 1);
+            if (field == null) {
+                throw new CompressionException("Invalid header index " + index);
+            }
+            return field;
+        }
+    }
+
+    /**
+     * Encodes the header blocks of one connection. Blocks must be sent in the order they were
+     * encoded, since each can change the table the next one refers to.
+     *
+     * Fields that match the static table are sent as an index. The names in {@code indexed}
+     * are added to the dynamic table, since their values tend to repeat from one response to
+     * the next; other fields, such as lengths and entity tags, are sent as literals without
+     * taking up room in the table. Strings are Huffman coded when that makes them shorter.
+     */
+    public static final class Encoder {
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+        private final Set<String> indexed;
+        private int pendingMinSize = -1;
+
+        /**
+         * Constructs an encoder.
+         *
+         * @param indexed The header names whose fields are worth keeping in the dynamic table.
+         */
+        public Encoder(Set<String> indexed) {
+            this.indexed = indexed;
+        }
+
+        /**
+         * Changes the size of the dynamic table, as the peer allows with
+         * {@code SETTINGS_HEADER_TABLE_SIZE}. The change is announced at the start of the
+         * next block.
+         *
+         * @param size The peer's limit in bytes; only up to the default is used.
+         */
+        public void setMaxTableSize(int size) {
+            size = Math.min(size, DEFAULT_TABLE_SIZE);
+            if (size == table.maxSize && pendingMinSize < 0) {
+                return;
+            }
+            // after several changes the peer must hear of the smallest, then of the last
+            pendingMinSize = pendingMinSize < 0 ? size : Math.min(pendingMinSize, size);
+            table.setMaxSize(size);
+        }
+
+        /**
+         * Encodes one header block.
+         *
+         * @param fields The fields as name and value pairs, names in lower case.
+         * @param out    Where to write the block.
+         */
+        public void encode(List<String[]> fields, ByteArrayOutputStream out) {
+            if (pendingMinSize >= 0) {
+                writeInteger(out, 0x20, 5, pendingMinSize);
+                if (table.maxSize != pendingMinSize) {
+                    writeInteger(out, 0x20, 5, table.maxSize);
+                }
+                pendingMinSize = -1;
+            }
+            for (String[] field : fields) {
+                String name = field[0];
+                String value = field[1];
+                Integer exact = STATIC_FIELDS.get(name + ':' + value);
+                if (exact != null) {
+                    writeInteger(out, 0x80, 7, exact);
+                    continue;
+                }
+                int dynamic = table.indexOf(name, value);
+                if (dynamic >= 0) {
+                    writeInteger(out, 0x80, 7, STATIC_TABLE.length + 1 + dynamic);
+                    continue;
+                }
+                Integer nameIndex = STATIC_NAMES.get(name);
+                boolean index = indexed.contains(name);
+                if (index) {
+                    writeInteger(out, 0x40, 6, nameIndex == null ? 0 : nameIndex);
+                    table.add(name, value);
+                } else {
+                    writeInteger(out, 0x00, 4, nameIndex == null ? 0 : nameIndex);
+                }
+                if (nameIndex == null) {
+                    writeString(out, name);
+                }
+                writeString(out, value);
+            }
+        }
+    }
+
+    /**
+     * The dynamic table: the most recently added fields, newest first, up to a size in bytes.
+     */
+    private static final class Table {
+        private final ArrayDeque<String[]> fields = new ArrayDeque<>();
+        private int size;
+        int maxSize;
+
+        Table(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        String[] get(int index) {
+            if (index >= fields.size()) {
+                return null;
+            }
+            Iterator<String[]> it = fields.iterator();
+            for (int i = 0; i < index; i++) {
+                it.next();
+            }
+            return it.next();
+        }
+
+        int indexOf(String name, String value) {
+            int i = 0;
+            for (String[] field : fields) {
+                if (field[0].equals(name) && field[1].equals(value)) {
+                    return i;
+                }
+                i++;
+            }
+            return -1;
+        }
+
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + 32;
+            evict(maxSize - entrySize);
+            // an entry larger than the whole table just empties it
+            if (entrySize <= maxSize) {
+                fields.addFirst(new String[] {name, value});
+                size += entrySize;
+            }
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        private void evict(int target) {
+            while (size > Math.max(target, 0) && !fields.isEmpty()) {
+                String[] oldest = fields.removeLast();
+                size -= oldest[0].length() + oldest[1].length() + 32;
+            }
+        }
+    }
+
+    /**
+     * A cursor over a header block.
+     */
+    private static final class Reader {
+        private final byte[] bytes;
+        private int position;
+        private final int end;
+
+        Reader(byte[] bytes, int position, int end) {
+            this.bytes = bytes;
+            this.position = position;
+            this.end = end;
+        }
+
+        boolean hasMore() {
+            return position < end;
+        }
+
+        int peek() {
+            return bytes[position] & 0xFF;
+        }
+
+        int readByte() throws CompressionException {
+            if (position >= end) {
+                throw new CompressionException("Header block ends in the middle of a field");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        int readInteger(int prefix) throws CompressionException {
+            int max = (1 << prefix) - 1;
+            int value = readByte() & max;
+            if (value < max) {
+                return value;
+            }
+            for (int shift = 0; shift <= 21; shift += 7) {
+                int b = readByte();
+                value += (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new CompressionException("Header integer too large");
+        }
+
+        String readString() throws CompressionException {
+            boolean huffman = (peek() & 0x80) != 0;
+            int length = readInteger(7);
+            if (length > end - position) {
+                throw new CompressionException("Header block ends in the middle of a string");
+            }
+            String value = huffman
+                    ? huffmanDecode(bytes, position, length)
+                    : new String(bytes, position, length, StandardCharsets.ISO_8859_1);
+            position += length;
+            return value;
+        }
+    }
+
+    private static String huffmanDecode(byte[] bytes, int offset, int length) throws CompressionException {
+        StringBuilder sb = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        // bits read since the last complete symbol, and whether they were all ones
+        int pendingBits = 0;
+        boolean allOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            int b = bytes[i] & 0xFF;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (b >>> bit) & 1;
+                int next = HUFFMAN_TREE[2 * node + one];
+                if (next == 0) {
+                    throw new CompressionException("Invalid Huffman code");
+                }
+                pendingBits++;
+                allOnes &= one == 1;
+                if (next >= 256) {
+                    sb.append((char) (next - 256));
+                    node = 0;
+                    pendingBits = 0;
+                    allOnes = true;
+                } else {
+                    node = next;
+                }
+            }
+        }
+        // padding is the start of the end-of-string code: up to seven one bits
+        if (pendingBits > 7 || !allOnes) {
+            throw new CompressionException("Invalid Huffman padding");
+        }
+        return sb.toString();
+    }
+
+    private static void writeInteger(ByteArrayOutputStream out, int flags, int prefix, int value) {
+        int max = (1 << prefix) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        long bits = 0;
+        for (int i = 0; i < value.length(); i++) {
+            bits += HUFFMAN_LENGTHS[value.charAt(i) & 0xFF];
+        }
+        int huffmanLength = (int) ((bits + 7) / 8);
+        if (huffmanLength >= value.length()) {
+            writeInteger(out, 0x00, 7, value.length());
+            for (int i = 0; i < value.length(); i++) {
+                out.write(value.charAt(i));
+            }
+            return;
+        }
+        writeInteger(out, 0x80, 7, huffmanLength);
+        long pending = 0;
+        int pendingBits = 0;
+        for (int i = 0; i < value.length(); i++) {
+            int symbol = value.charAt(i) & 0xFF;
+            pending = (pending << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+            pendingBits += HUFFMAN_LENGTHS[symbol];
+            while (pendingBits >= 8) {
+                pendingBits -= 8;
+                out.write((int) (pending >>> pendingBits));
+            }
+        }
+        if (pendingBits > 0) {
+            // pad with the most significant bits of the end-of-string code, which are all ones
+            out.write((int) ((pending << (8 - pendingBits)) | (0xFF >>> pendingBits)));
+        }
+    }
+}
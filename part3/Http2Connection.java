@@ -0,0 +1,1276 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Serves one HTTP/2 connection over cleartext TCP (h2c), which a client starts either with the
+ * connection preface straight away ("prior knowledge") or by upgrading an HTTP/1.1 request with
+ * {@code Upgrade: h2c}.
+ *
+ * The connection's thread reads frames and keeps the protocol state: header compression, flow
+ * control windows and settings. Each request is handed to a pooled worker thread as soon as it is
+ * complete, so many requests are answered at once over the one connection. The pool is bounded
+ * and shared by every connection; a stream it has no room for is refused. A stream counts
+ * against {@code SETTINGS_MAX_CONCURRENT_STREAMS} until its worker is done, even if the client
+ * resets it first, and a client that resets streams faster than it could have used them is
+ * disconnected. The worker runs the
+ * same route handlers as HTTP/1.1: the request is presented to them as an
+ * {@link HttpRequestParser}, and the HTTP/1.1 response they write through a
+ * {@link ResponseWriter} is turned into HEADERS and DATA frames as it is written. Frames from
+ * different workers are interleaved a frame at a time, each sending only as much as the client's
+ * windows allow.
+ *
+ * The connection is held to the same {@link ConnectionLimits} as an HTTP/1.1 one: it is closed
+ * with a GOAWAY once it has been idle for the idle timeout with no response in progress, each
+ * frame must arrive within the header timeout of its first byte, and a response the client
+ * stops reading, by not writing or by not opening its window, is given up after the write
+ * timeout.
+ */
+public final class Http2Connection {
+    /**
+     * Answers one request. {@link ClientHandler} passes its own request handling.
+     */
+    @FunctionalInterface
+    public interface RequestHandler {
+        /**
+         * Answers a request.
+         *
+         * @param request The request, with its version given as {@link #VERSION}.
+         * @param out     Where to write the response.
+         * @return Ignored; streams end when their response does.
+         * @throws IOException If writing the response fails.
+         */
+        boolean handle(HttpRequestParser request, ResponseWriter out) throws IOException;
+    }
+
+    /** The protocol version requests carry when they arrived over HTTP/2. */
+    public static final String VERSION = "HTTP/2.0";
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    // what is left of the preface once an HTTP/1.1 parser has read "PRI * HTTP/2.0" as a request
+    private static final int PREFACE_TAIL = 6;
+
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+    private static final int MAX_HEADER_LIST_SIZE = 64 * 1024;
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    private static final int MAX_WINDOW = Integer.MAX_VALUE;
+    // streams the client may reset in a second before it is taken to be attacking the server
+    private static final int MAX_RESETS_PER_SECOND = MAX_CONCURRENT_STREAMS;
+
+    // frame types
+    private static final int DATA = 0x0, HEADERS = 0x1, PRIORITY = 0x2, RST_STREAM = 0x3, SETTINGS = 0x4,
+                             PUSH_PROMISE = 0x5, PING = 0x6, GOAWAY = 0x7, WINDOW_UPDATE = 0x8, CONTINUATION = 0x9;
+    // frame flags
+    private static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4, PADDED = 0x8, PRIORITY_FLAG = 0x20;
+    // settings
+    private static final int HEADER_TABLE_SIZE = 0x1, ENABLE_PUSH = 0x2, MAX_CONCURRENT = 0x3,
+                             INITIAL_WINDOW_SIZE = 0x4, MAX_FRAME_SIZE = 0x5, MAX_HEADER_LIST = 0x6;
+    // error codes
+    private static final int NO_ERROR = 0x0, PROTOCOL_ERROR = 0x1, INTERNAL_ERROR = 0x2, FLOW_CONTROL_ERROR = 0x3,
+                             STREAM_CLOSED = 0x5, FRAME_SIZE_ERROR = 0x6, REFUSED_STREAM = 0x7,
+                             COMPRESSION_ERROR = 0x9, ENHANCE_YOUR_CALM = 0xb;
+
+    // response headers whose values repeat across responses, so are worth a dynamic table entry
+    private static final Set<String> INDEXED_HEADERS = Set.of("content-type", "vary", "accept-ranges", "cache-control", "allow");
+    // HTTP/1.1 headers about the connection rather than the response, which HTTP/2 forbids
+    private static final Set<String> CONNECTION_HEADERS = Set.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+    /**
+     * Thrown when the client breaks the protocol in a way that ends the connection.
+     */
+    private static final class ConnectionError extends IOException {
+        private static final long serialVersionUID = 1L;
+        final int code;
+
+        ConnectionError(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    /**
+     * One request and its response.
+     */
+    private static final class Stream {
+        final int id;
+        List<String[]> headers;
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        boolean bodyTooLarge;
+        // whether the client may still send DATA or trailers
+        boolean receiving = true;
+        volatile boolean reset;
+        // how much more the client lets us send, and how much it has sent since the last update
+        int sendWindow;
+        int unacknowledged;
+
+        Stream(int id, int sendWindow) {
+            this.id = id;
+            this.sendWindow = sendWindow;
+        }
+    }
+
+    private final SocketChannel channel;
+    private final DataInputStream in;
+    private final RequestHandler handler;
+    private final Executor workers;
+    private final ConnectionLimits limits;
+    private final ConnectionLimits.WriteTimer writeTimer;
+
+    private final Hpack.Decoder decoder = new Hpack.Decoder(MAX_HEADER_LIST_SIZE);
+    private final Hpack.Encoder encoder = new Hpack.Encoder(INDEXED_HEADERS);
+    // held while writing a frame, or a header block's frames, so frames never interleave
+    private final Object writeLock = new Object();
+
+    // guarded by this
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    // streams whose worker has not finished, whether or not they are still in streams
+    private int running;
+    private int sendWindow = DEFAULT_WINDOW;
+    private int initialSendWindow = DEFAULT_WINDOW;
+    private boolean closed;
+
+    // only touched by the connection's thread
+    private int lastStreamId;
+    private int unacknowledged;
+    private long resetWindowStart = System.nanoTime();
+    private int resetsInWindow;
+    private ByteArrayOutputStream headerBlock;
+    private int headerBlockStream;
+    private boolean headerBlockEndsStream;
+
+    private volatile int maxSendFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    /**
+     * Constructs a connection.
+     *
+     * @param channel    The client's channel, which frames are written to.
+     * @param in         The client's input, positioned where the HTTP/1.1 parser left off. It
+     *                   must read from the channel's socket, whose read timeout is set here.
+     * @param handler    Answers each request.
+     * @param workers    The bounded pool that runs {@code handler}, shared by every connection.
+     * @param limits     The timeouts, and the largest request body accepted; larger ones get a
+     *                   413 response.
+     * @param writeTimer The timer watching the connection's writes, or {@code null} for writes
+     *                   without a timeout.
+     */
+    public Http2Connection(SocketChannel channel, InputStream in, RequestHandler handler, Executor workers, ConnectionLimits limits, ConnectionLimits.WriteTimer writeTimer) {
+        this.channel = channel;
+        this.in = new DataInputStream(new BufferedInputStream(in, 16 * 1024));
+        this.handler = handler;
+        this.workers = workers;
+        this.limits = limits;
+        this.writeTimer = writeTimer;
+    }
+
+    /**
+     * Checks whether a parsed request is the start of the HTTP/2 connection preface, which an
+     * HTTP/1.1 parser reads as the request {@code PRI * HTTP/2.0} with no headers.
+     *
+     * @param request The request just parsed.
+     * @return {@code true} if the client is speaking HTTP/2.
+     */
+    public static boolean isPreface(HttpRequestParser request) {
+        return request.isMethod("PRI") && request.pathEquals("*") && request.getVersion().equals(VERSION);
+    }
+
+    /**
+     * Checks whether a request asks to upgrade the connection to cleartext HTTP/2 in a way this
+     * server accepts. Requests with a body are answered over HTTP/1.1 instead, as the client
+     * would then have to send the body before the upgrade took effect.
+     *
+     * @param request The request just parsed.
+     * @return {@code true} if the connection should be upgraded.
+     * @throws IOException If the request's {@code Content-Length} is malformed.
+     */
+    public static boolean isUpgrade(HttpRequestParser request) throws IOException {
+        String upgrade = request.getHeader("upgrade");
+        String connection = request.getHeader("connection");
+        return upgrade != null && connection != null && request.hasHeader("http2-settings")
+               && request.getVersion().equals("HTTP/1.1")
+               && hasToken(upgrade, "h2c") && hasToken(connection, "upgrade")
+               && request.getContentLength() == 0;
+    }
+
+    /**
+     * Serves a connection whose client sent the preface straight away.
+     *
+     * @throws IOException If reading from or writing to the connection fails.
+     */
+    public void serveAfterPreface() throws IOException {
+        channel.socket().setTcpNoDelay(true);
+        byte[] tail = new byte[PREFACE_TAIL];
+        readFully(tail, frameDeadline());
+        if (!Arrays.equals(tail, 0, PREFACE_TAIL, PREFACE, PREFACE.length - PREFACE_TAIL, PREFACE.length)) {
+            throw new IOException("Invalid HTTP/2 connection preface");
+        }
+        sendSettings();
+        serve();
+    }
+
+    /**
+     * Upgrades a connection from HTTP/1.1 and serves it, answering the upgrade request itself as
+     * stream 1.
+     *
+     * @param request The upgrade request, for which {@link #isUpgrade(HttpRequestParser)} holds.
+     * @throws IOException If reading from or writing to the connection fails.
+     */
+    public void serveAfterUpgrade(HttpRequestParser request) throws IOException {
+        byte[] settings;
+        try {
+            settings = Base64.getUrlDecoder().decode(request.getHeader("http2-settings").trim());
+        } catch (IllegalArgumentException e) {
+            settings = null;
+        }
+        channel.socket().setTcpNoDelay(true);
+        byte[] head = request.copyHead();
+        boolean headOnly = request.isMethod("HEAD");
+        writeFully(ByteBuffer.wrap("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n"
+                .getBytes(StandardCharsets.US_ASCII)));
+        sendSettings();
+        try {
+            // the 101 response acknowledges these, so no ACK is sent
+            if (settings == null || settings.length % 6 != 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Invalid HTTP2-Settings header");
+            }
+            applySettings(settings, 0, settings.length);
+
+            Stream stream = new Stream(1, initialSendWindow);
+            stream.receiving = false;
+            lastStreamId = 1;
+            synchronized (this) {
+                streams.put(1, stream);
+            }
+            start(stream, asHttp2Request(head), headOnly);
+
+            byte[] preface = new byte[PREFACE.length];
+            readFully(preface, frameDeadline());
+            if (!Arrays.equals(preface, PREFACE)) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Invalid HTTP/2 connection preface");
+            }
+        } catch (ConnectionError e) {
+            goAway(e);
+            return;
+        }
+        serve();
+    }
+
+    /**
+     * Reads and handles frames until the client closes the connection, then waits for the
+     * responses still being written.
+     */
+    private void serve() throws IOException {
+        try {
+            boolean first = true;
+            byte[] header = new byte[9];
+            while (true) {
+                int firstByte;
+                try {
+                    setReadTimeout(limits.getIdleTimeoutMillis());
+                    firstByte = in.read();
+                } catch (SocketTimeoutException e) {
+                    if (hasResponsesInProgress()) {
+                        continue;
+                    }
+                    System.out.println("Closing an idle HTTP/2 connection");
+                    closeAndSendGoAway(NO_ERROR);
+                    return;
+                }
+                if (firstByte < 0) {
+                    break;
+                }
+                long deadline = frameDeadline();
+                header[0] = (byte) firstByte;
+                readFully(header, 1, header.length - 1, deadline);
+                int length = (header[0] & 0xFF) << 16 | (header[1] & 0xFF) << 8 | header[2] & 0xFF;
+                int type = header[3] & 0xFF;
+                int flags = header[4] & 0xFF;
+                int streamId = ByteBuffer.wrap(header, 5, 4).getInt() & 0x7FFFFFFF;
+                if (length > DEFAULT_MAX_FRAME_SIZE) {
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "Frame larger than SETTINGS_MAX_FRAME_SIZE");
+                }
+                byte[] payload = new byte[length];
+                readFully(payload, 0, length, deadline);
+                if (first && type != SETTINGS) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Connection preface must start with SETTINGS");
+                }
+                first = false;
+                handleFrame(type, flags, streamId, payload);
+            }
+        } catch (ConnectionError e) {
+            goAway(e);
+            return;
+        } catch (IOException e) {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            throw e;
+        }
+        awaitStreams();
+    }
+
+    /**
+     * Returns when the frame whose first byte has just arrived must be complete.
+     *
+     * @return The deadline from {@link System#nanoTime()}, or 0 for none.
+     */
+    private long frameDeadline() {
+        long timeout = limits.getHeaderTimeoutMillis();
+        return timeout > 0 ? System.nanoTime() + timeout * 1_000_000 : 0;
+    }
+
+    private void readFully(byte[] bytes, long deadline) throws IOException {
+        readFully(bytes, 0, bytes.length, deadline);
+    }
+
+    /**
+     * Reads exactly {@code length} bytes, each read timing out at the deadline.
+     */
+    private void readFully(byte[] bytes, int offset, int length, long deadline) throws IOException {
+        while (length > 0) {
+            int n;
+            try {
+                if (deadline != 0) {
+                    long remaining = (deadline - System.nanoTime()) / 1_000_000;
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException();
+                    }
+                    setReadTimeout(remaining);
+                } else {
+                    setReadTimeout(0);
+                }
+                n = in.read(bytes, offset, length);
+            } catch (SocketTimeoutException e) {
+                throw new ConnectionError(ENHANCE_YOUR_CALM, "Frame not received in time");
+            }
+            if (n < 0) {
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private void setReadTimeout(long millis) throws IOException {
+        channel.socket().setSoTimeout((int) Math.min(millis, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Checks whether a worker is answering a request, so the client is waiting on the server
+     * rather than idle. Streams still receiving their request do not count.
+     */
+    private synchronized boolean hasResponsesInProgress() {
+        for (Stream stream : streams.values()) {
+            if (!stream.receiving) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void handleFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        if (headerBlock != null && (type != CONTINUATION || streamId != headerBlockStream)) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Header block interrupted");
+        }
+        switch (type) {
+            case DATA:
+                handleData(flags, streamId, payload);
+                break;
+            case HEADERS:
+                handleHeaders(flags, streamId, payload);
+                break;
+            case PRIORITY:
+                if (streamId == 0 || payload.length != 5) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Malformed PRIORITY frame");
+                }
+                // responses are sent as they are ready, so priorities are not used
+                break;
+            case RST_STREAM:
+                if (streamId == 0 || payload.length != 4) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Malformed RST_STREAM frame");
+                }
+                if (streamId > lastStreamId) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on an idle stream");
+                }
+                Stream reset;
+                synchronized (this) {
+                    reset = streams.remove(streamId);
+                    if (reset != null) {
+                        reset.reset = true;
+                        notifyAll();
+                    }
+                }
+                if (reset != null && tooManyResets()) {
+                    throw new ConnectionError(ENHANCE_YOUR_CALM, "Too many streams reset by the client");
+                }
+                break;
+            case SETTINGS:
+                if (streamId != 0) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on a stream");
+                }
+                if ((flags & ACK) != 0) {
+                    if (payload.length != 0) {
+                        throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS acknowledgement with a payload");
+                    }
+                    break;
+                }
+                if (payload.length % 6 != 0) {
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "Malformed SETTINGS frame");
+                }
+                applySettings(payload, 0, payload.length);
+                writeFrame(SETTINGS, ACK, 0, null);
+                break;
+            case PUSH_PROMISE:
+                throw new ConnectionError(PROTOCOL_ERROR, "Clients may not push");
+            case PING:
+                if (streamId != 0 || payload.length != 8) {
+                    throw new ConnectionError(payload.length != 8 ? FRAME_SIZE_ERROR : PROTOCOL_ERROR, "Malformed PING frame");
+                }
+                if ((flags & ACK) == 0) {
+                    writeFrame(PING, ACK, 0, ByteBuffer.wrap(payload));
+                }
+                break;
+            case GOAWAY:
+                // the client starts no more streams but still reads the responses in progress
+                break;
+            case WINDOW_UPDATE:
+                handleWindowUpdate(streamId, payload);
+                break;
+            case CONTINUATION:
+                if (headerBlock == null) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+                }
+                appendHeaderBlock(payload, 0, payload.length);
+                if ((flags & END_HEADERS) != 0) {
+                    endHeaderBlock();
+                }
+                break;
+            default:
+                // unknown frame types are ignored
+                break;
+        }
+    }
+
+    private void handleData(int flags, int streamId, byte[] payload) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        if (streamId > lastStreamId) {
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA on an idle stream");
+        }
+        int offset = 0;
+        int length = payload.length;
+        if ((flags & PADDED) != 0) {
+            int padding = length == 0 ? -1 : payload[0] & 0xFF;
+            if (padding < 0 || padding >= length) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Padding longer than the frame");
+            }
+            offset = 1;
+            length -= 1 + padding;
+        }
+
+        // the whole frame, padding included, counts against the windows, and its data is taken
+        // at once, so the windows are opened again as soon as they are half used
+        unacknowledged += payload.length;
+        if (unacknowledged >= DEFAULT_WINDOW / 2) {
+            sendWindowUpdate(0, unacknowledged);
+            unacknowledged = 0;
+        }
+
+        Stream stream;
+        synchronized (this) {
+            stream = streams.get(streamId);
+        }
+        if (stream == null) {
+            // refused or reset already; the data is dropped
+            return;
+        }
+        if (!stream.receiving) {
+            resetStream(stream, STREAM_CLOSED);
+            return;
+        }
+        if (stream.body.size() + length > limits.getMaxBodyBytes()) {
+            stream.bodyTooLarge = true;
+            stream.body.reset();
+        }
+        if (!stream.bodyTooLarge) {
+            stream.body.write(payload, offset, length);
+        }
+        if ((flags & END_STREAM) != 0) {
+            stream.receiving = false;
+            dispatch(stream);
+            return;
+        }
+        stream.unacknowledged += payload.length;
+        if (stream.unacknowledged >= DEFAULT_WINDOW / 2) {
+            sendWindowUpdate(streamId, stream.unacknowledged);
+            stream.unacknowledged = 0;
+        }
+    }
+
+    private void handleHeaders(int flags, int streamId, byte[] payload) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        int offset = 0;
+        int length = payload.length;
+        if ((flags & PADDED) != 0) {
+            int padding = length == 0 ? -1 : payload[0] & 0xFF;
+            offset = 1;
+            length -= 1 + padding;
+        }
+        if ((flags & PRIORITY_FLAG) != 0) {
+            offset += 5;
+            length -= 5;
+        }
+        if (length < 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Padding longer than the frame");
+        }
+        headerBlock = new ByteArrayOutputStream(length);
+        headerBlockStream = streamId;
+        headerBlockEndsStream = (flags & END_STREAM) != 0;
+        appendHeaderBlock(payload, offset, length);
+        if ((flags & END_HEADERS) != 0) {
+            endHeaderBlock();
+        }
+    }
+
+    private void appendHeaderBlock(byte[] bytes, int offset, int length) throws ConnectionError {
+        if (headerBlock.size() + length > MAX_HEADER_LIST_SIZE) {
+            throw new ConnectionError(ENHANCE_YOUR_CALM, "Header block too large");
+        }
+        headerBlock.write(bytes, offset, length);
+    }
+
+    /**
+     * Decodes a complete header block and starts, finishes or refuses its stream.
+     */
+    private void endHeaderBlock() throws IOException {
+        byte[] block = headerBlock.toByteArray();
+        int streamId = headerBlockStream;
+        boolean endsStream = headerBlockEndsStream;
+        headerBlock = null;
+
+        // every block is decoded, even for a stream that is refused, to keep the table in step
+        List<String[]> fields;
+        try {
+            fields = decoder.decode(block, 0, block.length);
+        } catch (Hpack.CompressionException e) {
+            throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+        }
+
+        if (streamId <= lastStreamId) {
+            Stream stream;
+            synchronized (this) {
+                stream = streams.get(streamId);
+            }
+            if (stream == null) {
+                return;
+            }
+            if (!stream.receiving || !endsStream) {
+                throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on a stream already open");
+            }
+            // trailers, which no route uses
+            stream.receiving = false;
+            dispatch(stream);
+            return;
+        }
+        if (streamId % 2 == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Clients must use odd stream IDs");
+        }
+        lastStreamId = streamId;
+
+        Stream stream;
+        synchronized (this) {
+            if (activeStreamCount() >= MAX_CONCURRENT_STREAMS) {
+                stream = null;
+            } else {
+                stream = new Stream(streamId, initialSendWindow);
+                streams.put(streamId, stream);
+            }
+        }
+        if (stream == null) {
+            sendRstStream(streamId, REFUSED_STREAM);
+            return;
+        }
+        stream.headers = fields;
+        if (endsStream) {
+            stream.receiving = false;
+            dispatch(stream);
+        }
+    }
+
+    private void handleWindowUpdate(int streamId, byte[] payload) throws IOException {
+        if (payload.length != 4) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "Malformed WINDOW_UPDATE frame");
+        }
+        int increment = ByteBuffer.wrap(payload).getInt() & 0x7FFFFFFF;
+        synchronized (this) {
+            if (streamId == 0) {
+                if (increment == 0) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Window increment of 0");
+                }
+                if ((long) sendWindow + increment > MAX_WINDOW) {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window too large");
+                }
+                sendWindow += increment;
+                notifyAll();
+                return;
+            }
+            Stream stream = streams.get(streamId);
+            if (stream == null) {
+                if (streamId > lastStreamId) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE on an idle stream");
+                }
+                return;
+            }
+            if (increment == 0 || (long) stream.sendWindow + increment > MAX_WINDOW) {
+                // a stream error: only this stream is reset
+                stream.reset = true;
+                streams.remove(streamId);
+                notifyAll();
+            } else {
+                stream.sendWindow += increment;
+                notifyAll();
+                return;
+            }
+        }
+        sendRstStream(streamId, increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+    }
+
+    private void applySettings(byte[] payload, int offset, int length) throws IOException {
+        ByteBuffer settings = ByteBuffer.wrap(payload, offset, length);
+        while (settings.hasRemaining()) {
+            int id = settings.getShort() & 0xFFFF;
+            long value = settings.getInt() & 0xFFFFFFFFL;
+            switch (id) {
+                case HEADER_TABLE_SIZE:
+                    synchronized (writeLock) {
+                        encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    }
+                    break;
+                case ENABLE_PUSH:
+                    if (value > 1) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+                    }
+                    break;
+                case INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW) {
+                        throw new ConnectionError(FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    }
+                    synchronized (this) {
+                        // the change applies to every open stream, and may take a window below zero
+                        int delta = (int) value - initialSendWindow;
+                        for (Stream stream : streams.values()) {
+                            if ((long) stream.sendWindow + delta > MAX_WINDOW) {
+                                throw new ConnectionError(FLOW_CONTROL_ERROR, "Stream window too large");
+                            }
+                            stream.sendWindow += delta;
+                        }
+                        initialSendWindow = (int) value;
+                        notifyAll();
+                    }
+                    break;
+                case MAX_FRAME_SIZE:
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xFFFFFF) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+                    }
+                    maxSendFrameSize = (int) value;
+                    break;
+                default:
+                    // MAX_CONCURRENT_STREAMS and MAX_HEADER_LIST_SIZE limit pushes and requests
+                    // from the server, so neither matters here; unknown settings are ignored
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Hands a stream whose request is complete to a worker.
+     */
+    private void dispatch(Stream stream) {
+        byte[] request;
+        boolean head;
+        try {
+            request = stream.bodyTooLarge ? null : asHttp1Request(stream.headers, stream.body);
+            head = "HEAD".equals(pseudoHeader(stream.headers, ":method"));
+        } catch (IOException e) {
+            // a malformed request is a stream error
+            synchronized (this) {
+                streams.remove(stream.id);
+                stream.reset = true;
+            }
+            try {
+                sendRstStream(stream.id, PROTOCOL_ERROR);
+            } catch (IOException ignored) {
+                // the connection's thread finds out when it next writes
+            }
+            return;
+        }
+        stream.headers = null;
+        start(stream, request, head);
+    }
+
+    /**
+     * Runs a stream's request on a worker, or refuses the stream if the workers are all busy and
+     * their queue is full. The stream is counted as running until the worker is done.
+     */
+    private void start(Stream stream, byte[] request, boolean head) {
+        synchronized (this) {
+            running++;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    respond(stream, request, head);
+                } finally {
+                    responseDone();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            responseDone();
+            synchronized (this) {
+                streams.remove(stream.id);
+                stream.reset = true;
+            }
+            try {
+                sendRstStream(stream.id, REFUSED_STREAM);
+            } catch (IOException ignored) {
+                // the connection's thread finds out when it next writes
+            }
+        }
+    }
+
+    private synchronized void responseDone() {
+        running--;
+        notifyAll();
+    }
+
+    /**
+     * Counts the streams that hold resources: those still receiving their request, and those
+     * whose worker has not finished, including any the client has reset.
+     */
+    private synchronized int activeStreamCount() {
+        int count = running;
+        for (Stream stream : streams.values()) {
+            if (stream.receiving) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Counts a stream reset by the client, and checks whether the client has reset more in the
+     * last second than it could have had open, which only a client abusing resets to start work
+     * it never reads would do.
+     */
+    private boolean tooManyResets() {
+        long now = System.nanoTime();
+        if (now - resetWindowStart > 1_000_000_000L) {
+            resetWindowStart = now;
+            resetsInWindow = 0;
+        }
+        return ++resetsInWindow > MAX_RESETS_PER_SECOND;
+    }
+
+    /**
+     * Runs on a worker: answers a request and ends its stream.
+     *
+     * @param request The request as HTTP/1.1 bytes, or {@code null} if its body was too large.
+     */
+    private void respond(Stream stream, byte[] request, boolean head) {
+        StreamChannel response = new StreamChannel(stream, head);
+        ResponseWriter out = new ResponseWriter(response);
+        try {
+            if (request == null) {
+                out.send(413, "Payload Too Large", "text/plain", "Request body too large");
+            } else {
+                HttpRequestParser parser = new HttpRequestParser(new ByteArrayInputStream(request));
+                try {
+                    parser.next();
+                } catch (HttpRequestParser.BadRequestException e) {
+                    out.send(e.getStatusCode(), e.getStatusMessage(), "text/plain", e.getMessage());
+                    return;
+                }
+                handler.handle(parser, out);
+            }
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        } finally {
+            response.finish();
+        }
+    }
+
+    /**
+     * Rewrites the head of an HTTP/1.1 upgrade request to carry the HTTP/2 version, so handlers
+     * see the same version for it as for the requests that follow on the connection.
+     */
+    private static byte[] asHttp2Request(byte[] head) {
+        int lineEnd = 0;
+        while (head[lineEnd] != '\n') {
+            lineEnd++;
+        }
+        int versionStart = lineEnd;
+        while (head[versionStart - 1] != ' ') {
+            versionStart--;
+        }
+        byte[] version = (VERSION + "\r").getBytes(StandardCharsets.US_ASCII);
+        byte[] request = new byte[versionStart + version.length + head.length - lineEnd];
+        System.arraycopy(head, 0, request, 0, versionStart);
+        System.arraycopy(version, 0, request, versionStart, version.length);
+        System.arraycopy(head, lineEnd, request, versionStart + version.length, head.length - lineEnd);
+        return request;
+    }
+
+    /**
+     * Renders an HTTP/2 request as the HTTP/1.1 request the route handlers parse, with
+     * {@code :authority} as {@code Host} and the received body's length as
+     * {@code Content-Length}.
+     *
+     * @throws IOException If the request is malformed, including any field that could not be
+     *                     written as an HTTP/1.1 header.
+     */
+    private static byte[] asHttp1Request(List<String[]> headers, ByteArrayOutputStream body) throws IOException {
+        String method = pseudoHeader(headers, ":method");
+        String path = pseudoHeader(headers, ":path");
+        String authority = pseudoHeader(headers, ":authority");
+        if (method == null || path == null || path.isEmpty() || !isToken(method) || !isTarget(path)) {
+            throw new IOException("Malformed request pseudo-headers");
+        }
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(method).append(' ').append(path).append(' ').append(VERSION).append("\r\n");
+        boolean hasHost = false;
+        boolean regular = false;
+        for (String[] field : headers) {
+            String name = field[0];
+            String value = field[1];
+            if (name.startsWith(":")) {
+                if (regular) {
+                    throw new IOException("Pseudo-header after a regular header");
+                }
+                continue;
+            }
+            regular = true;
+            if (!isToken(name) || !name.equals(name.toLowerCase(Locale.ROOT)) || !isFieldValue(value)
+                || CONNECTION_HEADERS.contains(name)) {
+                throw new IOException("Malformed request header " + name);
+            }
+            if (name.equals("content-length")) {
+                continue;
+            }
+            hasHost |= name.equals("host");
+            sb.append(name).append(": ").append(value).append("\r\n");
+        }
+        if (!hasHost && authority != null) {
+            if (!isFieldValue(authority)) {
+                throw new IOException("Malformed :authority");
+            }
+            sb.append("host: ").append(authority).append("\r\n");
+        }
+        if (body.size() > 0) {
+            sb.append("content-length: ").append(body.size()).append("\r\n");
+        }
+        sb.append("\r\n");
+        byte[] head = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+        byte[] request = Arrays.copyOf(head, head.length + body.size());
+        System.arraycopy(body.toByteArray(), 0, request, head.length, body.size());
+        return request;
+    }
+
+    private static String pseudoHeader(List<String[]> headers, String name) {
+        for (String[] field : headers) {
+            if (field[0].equals(name)) {
+                return field[1];
+            }
+        }
+        return null;
+    }
+
+    private static boolean isToken(String text) {
+        if (text.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c <= ' ' || c >= 0x7F || "\"(),/:;<=>?@[\\]{}".indexOf(c) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isTarget(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c <= ' ' || c == 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isFieldValue(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\r' || c == '\n' || c == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasToken(String list, String token) {
+        for (String item : list.split(",")) {
+            if (item.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Waits until every response in progress has been written.
+     */
+    private synchronized void awaitStreams() throws IOException {
+        try {
+            while ((!streams.isEmpty() || running > 0) && !closed) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Reserves room in the flow control windows for up to {@code wanted} bytes of a stream's
+     * data, waiting for the client to open them if both are not already open.
+     *
+     * @return The number of bytes that may be sent, at least 1.
+     */
+    private synchronized int reserveWindow(Stream stream, int wanted) throws IOException {
+        long timeout = limits.getWriteTimeoutMillis();
+        long deadline = System.nanoTime() + timeout * 1_000_000;
+        try {
+            while (true) {
+                if (stream.reset) {
+                    throw new IOException("Stream " + stream.id + " was reset by the client");
+                }
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                int n = Math.min(wanted, Math.min(stream.sendWindow, sendWindow));
+                if (n > 0) {
+                    stream.sendWindow -= n;
+                    sendWindow -= n;
+                    return n;
+                }
+                if (timeout <= 0) {
+                    wait();
+                    continue;
+                }
+                long remaining = (deadline - System.nanoTime()) / 1_000_000;
+                if (remaining <= 0) {
+                    // a client that never opens its window is a reader that stopped reading
+                    throw new IOException("Stream " + stream.id + " flow control window not opened in time");
+                }
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Forgets a stream whose response is complete or abandoned.
+     */
+    private synchronized void endStream(Stream stream) {
+        streams.remove(stream.id);
+        notifyAll();
+    }
+
+    private void sendSettings() throws IOException {
+        ByteBuffer settings = ByteBuffer.allocate(12);
+        settings.putShort((short) MAX_CONCURRENT).putInt(MAX_CONCURRENT_STREAMS);
+        settings.putShort((short) MAX_HEADER_LIST).putInt(MAX_HEADER_LIST_SIZE);
+        writeFrame(SETTINGS, 0, 0, settings.flip());
+    }
+
+    private void sendWindowUpdate(int streamId, int increment) throws IOException {
+        writeFrame(WINDOW_UPDATE, 0, streamId, ByteBuffer.allocate(4).putInt(0, increment));
+    }
+
+    private void sendRstStream(int streamId, int code) throws IOException {
+        writeFrame(RST_STREAM, 0, streamId, ByteBuffer.allocate(4).putInt(0, code));
+    }
+
+    private void resetStream(Stream stream, int code) throws IOException {
+        synchronized (this) {
+            stream.reset = true;
+            streams.remove(stream.id);
+            notifyAll();
+        }
+        sendRstStream(stream.id, code);
+    }
+
+    /**
+     * Tells the client the connection is ending because of an error, and stops every response.
+     */
+    private void goAway(ConnectionError error) {
+        System.out.println("HTTP/2 connection error: " + error.getMessage());
+        closeAndSendGoAway(error.code);
+    }
+
+    /**
+     * Stops every response and sends GOAWAY with the error code, {@link #NO_ERROR} for an
+     * ordinary close.
+     */
+    private void closeAndSendGoAway(int code) {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            ByteBuffer payload = ByteBuffer.allocate(8).putInt(lastStreamId).putInt(code);
+            writeFrame(GOAWAY, 0, 0, payload.flip());
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes one frame.
+     */
+    private void writeFrame(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+        ByteBuffer header = frameHeader(payload == null ? 0 : payload.remaining(), type, flags, streamId);
+        writeFully(payload == null ? new ByteBuffer[] {header} : new ByteBuffer[] {header, payload});
+    }
+
+    private static ByteBuffer frameHeader(int length, int type, int flags, int streamId) {
+        ByteBuffer header = ByteBuffer.allocate(9);
+        header.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length)
+              .put((byte) type).put((byte) flags).putInt(streamId);
+        return header.flip();
+    }
+
+    /**
+     * Writes frames, already rendered, in one gathering write where the socket allows, with no
+     * other frame in between.
+     */
+    private void writeFully(ByteBuffer... buffers) throws IOException {
+        synchronized (writeLock) {
+            ByteBuffer last = buffers[buffers.length - 1];
+            while (last.hasRemaining()) {
+                if (writeTimer != null) {
+                    writeTimer.start();
+                }
+                try {
+                    channel.write(buffers);
+                } finally {
+                    if (writeTimer != null) {
+                        writeTimer.stop();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The channel a stream's {@link ResponseWriter} writes to. The HTTP/1.1 status line and
+     * headers it writes first become a HEADERS frame, and what follows becomes DATA frames. The
+     * HEADERS frame is held back until the first DATA frame, so that a small response leaves in
+     * a single write.
+     */
+    private final class StreamChannel implements WritableByteChannel {
+        private final Stream stream;
+        private final boolean head;
+        private ByteArrayOutputStream responseHead = new ByteArrayOutputStream(512);
+        // the last four bytes of the head, to find the blank line that ends it
+        private int headTail;
+        // the response's header fields, parsed but not yet sent
+        private List<String[]> pendingHeaders;
+        // body bytes still to be sent, or -1 if the response has no Content-Length
+        private long remaining = -1;
+        private boolean ended;
+
+        StreamChannel(Stream stream, boolean head) {
+            this.stream = stream;
+            this.head = head;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = src.remaining();
+            while (src.hasRemaining() && responseHead != null) {
+                byte b = src.get();
+                responseHead.write(b);
+                headTail = headTail << 8 | (b & 0xFF);
+                if (headTail == 0x0D0A0D0A) {
+                    parseHead();
+                }
+            }
+            while (src.hasRemaining()) {
+                if (ended || (remaining >= 0 && src.remaining() > remaining)) {
+                    throw new IOException("Response body longer than its Content-Length");
+                }
+                // as much as the windows allow goes out in one write, cut into frames
+                int n = reserveWindow(stream, src.remaining());
+                int frameSize = maxSendFrameSize;
+                ByteBuffer[] frames = new ByteBuffer[(n + frameSize - 1) / frameSize * 2];
+                for (int i = 0; i < frames.length; i += 2) {
+                    int length = Math.min(n, frameSize);
+                    n -= length;
+                    int flags = 0;
+                    if (remaining >= 0) {
+                        remaining -= length;
+                        if (remaining == 0) {
+                            flags = END_STREAM;
+                            ended = true;
+                        }
+                    }
+                    frames[i] = frameHeader(length, DATA, flags, stream.id);
+                    frames[i + 1] = src.slice(src.position(), length);
+                    src.position(src.position() + length);
+                }
+                if (pendingHeaders != null) {
+                    sendHeaders(false, frames);
+                } else {
+                    writeFully(frames);
+                }
+            }
+            if (ended) {
+                endStream(stream);
+            }
+            return written;
+        }
+
+        /**
+         * Converts the HTTP/1.1 head written so far into HTTP/2 header fields, and sends them
+         * straight away if the response has no body.
+         */
+        private void parseHead() throws IOException {
+            String[] lines = new String(responseHead.toByteArray(), StandardCharsets.ISO_8859_1).split("\r\n");
+            responseHead = null;
+            String status = lines[0].substring(9, 12);
+            List<String[]> fields = new ArrayList<>();
+            fields.add(new String[] {":status", status});
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = lines[i].substring(colon + 1).trim();
+                if (CONNECTION_HEADERS.contains(name)) {
+                    continue;
+                }
+                if (name.equals("content-length")) {
+                    remaining = Long.parseLong(value);
+                }
+                fields.add(new String[] {name, value});
+            }
+            if (head || status.equals("204") || status.equals("304")) {
+                remaining = 0;
+            }
+            pendingHeaders = fields;
+            if (remaining == 0) {
+                ended = true;
+                sendHeaders(true);
+            }
+        }
+
+        /**
+         * Sends the pending header fields as a HEADERS frame, followed by CONTINUATION frames if
+         * they do not fit in one, and then by the first DATA frames if there are any. The fields
+         * are compressed under the write lock, as the client decompresses header blocks in the
+         * order they arrive.
+         */
+        private void sendHeaders(boolean endStream, ByteBuffer... dataFrames) throws IOException {
+            List<String[]> fields = pendingHeaders;
+            pendingHeaders = null;
+            synchronized (writeLock) {
+                if (stream.reset) {
+                    throw new IOException("Stream " + stream.id + " was reset by the client");
+                }
+                ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+                encoder.encode(fields, block);
+                byte[] bytes = block.toByteArray();
+                int frameSize = maxSendFrameSize;
+                List<ByteBuffer> frames = new ArrayList<>(4);
+                int offset = 0;
+                int type = HEADERS;
+                do {
+                    int length = Math.min(bytes.length - offset, frameSize);
+                    int flags = offset + length == bytes.length ? END_HEADERS : 0;
+                    if (type == HEADERS && endStream) {
+                        flags |= END_STREAM;
+                    }
+                    frames.add(frameHeader(length, type, flags, stream.id));
+                    frames.add(ByteBuffer.wrap(bytes, offset, length));
+                    offset += length;
+                    type = CONTINUATION;
+                } while (offset < bytes.length);
+                frames.addAll(Arrays.asList(dataFrames));
+                writeFully(frames.toArray(new ByteBuffer[0]));
+            }
+        }
+
+        /**
+         * Ends the stream once the handler has returned: a response without
+         * {@code Content-Length} ends here, and one that was never written or cut short is reset.
+         */
+        void finish() {
+            if (ended || stream.reset) {
+                endStream(stream);
+                return;
+            }
+            try {
+                if (responseHead == null && remaining < 0) {
+                    if (pendingHeaders != null) {
+                        sendHeaders(true);
+                    } else {
+                        writeFrame(DATA, END_STREAM, stream.id, null);
+                    }
+                } else {
+                    sendRstStream(stream.id, INTERNAL_ERROR);
+                }
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            } finally {
+                ended = true;
+                endStream(stream);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !ended;
+        }
+
+        @Override
+        public void close() {
+            finish();
+        }
+    }
+}
@@ -0,0 +1,661 @@
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parses HTTP/1.1 requests from a connection's input stream, one after another.
+ *
+ * The request line and headers are scanned byte by byte with a small state machine over a single
+ * buffer that is reused for every request on the connection. Parsing records only where the
+ * method, target and each header name and value start and end; nothing is decoded into a
+ * {@code String} unless a caller asks for it, and header lookups compare bytes in place. Bodies
+ * are read by exact byte count from {@code Content-Length}, and any body a handler leaves unread
+ * is skipped before the next request is parsed.
+ *
+ * Given the connection's socket, the parser sets its read timeout before every read from the
+ * {@link ConnectionLimits}: the idle timeout while waiting for a request, what is left of the
+ * header timeout once a request has started, and the body timeout and minimum rate while reading
+ * a body.
+ */
+public final class HttpRequestParser {
+    /**
+     * Thrown when a request is malformed, too large to parse, or too slow to arrive. The
+     * connection cannot be reused afterwards because the start of the next request is unknown.
+     */
+    public static final class BadRequestException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int statusCode;
+        private final String statusMessage;
+
+        BadRequestException(String message) {
+            this(400, "Bad Request", message);
+        }
+
+        BadRequestException(int statusCode, String statusMessage, String message) {
+            super(message);
+            this.statusCode = statusCode;
+            this.statusMessage = statusMessage;
+        }
+
+        /**
+         * Returns the status the client should be answered with.
+         *
+         * @return The status code, e.g. 400, or 431 for a head that is too large.
+         */
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * Returns the reason phrase for {@link #getStatusCode()}.
+         *
+         * @return The reason phrase, e.g. {@code Bad Request}.
+         */
+        public String getStatusMessage() {
+            return statusMessage;
+        }
+    }
+
+    private static final int INITIAL_BUFFER = 8192;
+    private static final int MAX_HEADERS = 100;
+    // parsers without a socket, such as those over an HTTP/2 stream's request, share these
+    private static final ConnectionLimits DEFAULT_LIMITS = new ConnectionLimits();
+    private static final String[] KNOWN_METHODS = {"GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH"};
+
+    // parser states
+    private static final int LINE_START = 0, METHOD = 1, TARGET = 2, VERSION = 3,
+                             HEADER_START = 4, HEADER_NAME = 5, HEADER_VALUE = 6, DONE = 7;
+
+    private final InputStream in;
+    // the socket whose read timeout is set before each read, or null for no timeouts
+    private final Socket socket;
+    private final ConnectionLimits limits;
+    private byte[] buffer = new byte[INITIAL_BUFFER];
+    private int requestStart;
+    private int position;
+    private int limit;
+    private long unreadBody;
+    private long bodyLength;
+    private long bodyStartedAt;
+    private int headLength;
+
+    // the offsets below are relative to requestStart, so the buffer can be compacted mid-request
+    private int methodStart, methodEnd;
+    private int targetStart, targetEnd, queryStart;
+    private int versionStart, versionEnd;
+    // start and end of each header name, then of its value, four ints per header
+    private int[] headerSlices = new int[32 * 4];
+    private int headerCount;
+    private String path;
+
+    /**
+     * Constructs a parser reading from a connection.
+     *
+     * @param in The connection's input stream. The parser does its own buffering.
+     */
+    public HttpRequestParser(InputStream in) {
+        this(in, null, DEFAULT_LIMITS);
+    }
+
+    /**
+     * Constructs a parser reading from a connection, with timeouts and size limits.
+     *
+     * @param in     The connection's input stream. The parser does its own buffering.
+     * @param socket The connection's socket, whose read timeout is set before each read, or
+     *               {@code null} to read without timeouts.
+     * @param limits The timeouts and the largest head allowed.
+     */
+    public HttpRequestParser(InputStream in, Socket socket, ConnectionLimits limits) {
+        this.in = in;
+        this.socket = socket;
+        this.limits = limits;
+    }
+
+    /**
+     * Parses the next request's line and headers, first skipping whatever was left unread of the
+     * previous request's body.
+     *
+     * @return {@code true} if a request was parsed, {@code false} if the client closed the
+     *         connection between requests or left it idle for longer than the idle timeout.
+     * @throws BadRequestException If the request is malformed, its head is too large, or it
+     *                             takes longer than the header timeout.
+     * @throws IOException         If reading from the connection fails.
+     */
+    public boolean next() throws IOException {
+        skipBody();
+        if (position == limit) {
+            position = limit = 0;
+        }
+        requestStart = position;
+        headerCount = 0;
+        queryStart = -1;
+        path = null;
+
+        int state = LINE_START;
+        int nameStart = 0, nameEnd = 0, valueStart = 0;
+        int scan = 0;
+        int maxHeadBytes = limits.getMaxHeaderBytes();
+        // the header timeout runs from the request's first byte, blank lines included
+        long headStartedAt = position < limit ? System.nanoTime() : 0;
+        while (state != DONE) {
+            if (scan > maxHeadBytes) {
+                throw new BadRequestException(431, "Request Header Fields Too Large", "Request head too large");
+            }
+            if (requestStart + scan == limit) {
+                boolean filled;
+                try {
+                    if (headStartedAt == 0) {
+                        setReadTimeout(limits.getIdleTimeoutMillis());
+                    } else {
+                        setReadTimeout(remainingHeadMillis(headStartedAt));
+                    }
+                    filled = fill();
+                } catch (SocketTimeoutException e) {
+                    if (headStartedAt == 0) {
+                        return false;
+                    }
+                    throw headTimeout();
+                }
+                if (!filled) {
+                    if (state == LINE_START) {
+                        return false;
+                    }
+                    throw new EOFException("Connection closed in the middle of a request");
+                }
+                if (headStartedAt == 0) {
+                    headStartedAt = System.nanoTime();
+                }
+            }
+            // each state consumes as many bytes as it can in a tight loop before coming back here
+            byte[] buf = buffer;
+            int base = requestStart;
+            int available = limit - base;
+            int i = scan;
+            switch (state) {
+                case LINE_START:
+                    // blank lines before a request line are ignored
+                    while (i < available && (buf[base + i] == '\r' || buf[base + i] == '\n')) {
+                        i++;
+                    }
+                    if (i < available) {
+                        methodStart = i;
+                        state = METHOD;
+                    }
+                    break;
+                case METHOD:
+                    while (i < available && buf[base + i] >= 'A' && buf[base + i] <= 'Z') {
+                        i++;
+                    }
+                    if (i < available) {
+                        if (buf[base + i] != ' ' || i == methodStart) {
+                            throw new BadRequestException("Malformed request line");
+                        }
+                        methodEnd = i;
+                        targetStart = ++i;
+                        state = TARGET;
+                    }
+                    break;
+                case TARGET:
+                    while (i < available) {
+                        byte b = buf[base + i];
+                        if (b <= ' ' || b == 0x7F) {
+                            break;
+                        }
+                        if (b == '?' && queryStart < 0) {
+                            queryStart = i;
+                        }
+                        i++;
+                    }
+                    if (i < available) {
+                        byte b = buf[base + i];
+                        if (i == targetStart || (b != ' ' && b != '\r' && b != '\n')) {
+                            throw new BadRequestException("Malformed request target");
+                        }
+                        targetEnd = i;
+                        versionStart = b == ' ' ? i + 1 : i;
+                        state = VERSION;
+                    }
+                    break;
+                case VERSION:
+                    while (i < available && buf[base + i] != '\n') {
+                        i++;
+                    }
+                    if (i < available) {
+                        versionEnd = i > versionStart && buf[base + i - 1] == '\r' ? i - 1 : i;
+                        i++;
+                        state = HEADER_START;
+                    }
+                    break;
+                case HEADER_START:
+                    if (buf[base + i] == '\n') {
+                        i++;
+                        state = DONE;
+                    } else if (buf[base + i] == '\r') {
+                        i++;
+                    } else {
+                        nameStart = i;
+                        state = HEADER_NAME;
+                    }
+                    break;
+                case HEADER_NAME:
+                    while (i < available && buf[base + i] != ':' && buf[base + i] != '\n') {
+                        i++;
+                    }
+                    if (i < available) {
+                        if (buf[base + i] == ':') {
+                            nameEnd = i;
+                            valueStart = i + 1;
+                            state = HEADER_VALUE;
+                        } else {
+                            // a line without a colon is not a header, so it is ignored
+                            state = HEADER_START;
+                        }
+                        i++;
+                    }
+                    break;
+                case HEADER_VALUE:
+                    while (i < available && buf[base + i] != '\n') {
+                        i++;
+                    }
+                    if (i < available) {
+                        addHeader(nameStart, nameEnd, valueStart, i);
+                        i++;
+                        state = HEADER_START;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            scan = i;
+        }
+        position = requestStart + scan;
+        headLength = scan;
+        if (queryStart < 0) {
+            queryStart = targetEnd;
+        }
+        if (hasHeader("transfer-encoding")) {
+            // without Content-Length the end of the body is unknown, so the connection is unusable
+            throw new BadRequestException("Chunked request bodies are not supported");
+        }
+        unreadBody = bodyLength = getContentLength();
+        bodyStartedAt = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * Returns the request method. The common methods are returned as shared constants, so no
+     * string is allocated for them.
+     *
+     * @return The method, e.g. {@code GET}.
+     */
+    public String getMethod() {
+        for (String known : KNOWN_METHODS) {
+            if (equalsAscii(methodStart, methodEnd, known)) {
+                return known;
+            }
+        }
+        return ascii(methodStart, methodEnd);
+    }
+
+    /**
+     * Checks the request method without allocating.
+     *
+     * @param method The method to compare with, e.g. {@code POST}.
+     * @return {@code true} if the request uses that method.
+     */
+    public boolean isMethod(String method) {
+        return equalsAscii(methodStart, methodEnd, method);
+    }
+
+    /**
+     * Returns the path part of the request target, before any {@code ?}.
+     *
+     * @return The path, e.g. {@code /chirps/12}.
+     */
+    public String getPath() {
+        if (path == null) {
+            path = ascii(targetStart, queryStart);
+        }
+        return path;
+    }
+
+    /**
+     * Compares the path with a string without allocating.
+     *
+     * @param other The path to compare with.
+     * @return {@code true} if the request path is exactly {@code other}.
+     */
+    public boolean pathEquals(String other) {
+        return equalsAscii(targetStart, queryStart, other);
+    }
+
+    /**
+     * Returns the query string after the {@code ?} in the request target, still URL-encoded.
+     *
+     * @return The query string, or an empty string if there is none.
+     */
+    public String getQueryString() {
+        return queryStart < targetEnd ? ascii(queryStart + 1, targetEnd) : "";
+    }
+
+    /**
+     * Returns the protocol version from the request line.
+     *
+     * @return The version, e.g. {@code HTTP/1.1}, or an empty string if the line had none.
+     */
+    public String getVersion() {
+        return ascii(versionStart, versionEnd);
+    }
+
+    /**
+     * Looks up a header. Names are compared case-insensitively, in place. If a header appears
+     * more than once, the last value is returned.
+     *
+     * @param name The header name in lower case, e.g. {@code content-length}.
+     * @return The header's value with surrounding whitespace removed, or {@code null} if the
+     *         request does not have it.
+     */
+    public String getHeader(String name) {
+        int header = findHeader(name);
+        if (header < 0) {
+            return null;
+        }
+        return ascii(headerSlices[header + 2], headerSlices[header + 3]);
+    }
+
+    /**
+     * Checks whether the request has a header.
+     *
+     * @param name The header name in lower case.
+     * @return {@code true} if the header is present.
+     */
+    public boolean hasHeader(String name) {
+        return findHeader(name) >= 0;
+    }
+
+    /**
+     * Returns the body length declared by {@code Content-Length}, parsed without allocating.
+     *
+     * @return The length in bytes, or 0 if the header is absent.
+     * @throws BadRequestException If the header is not a non-negative number.
+     */
+    public long getContentLength() throws BadRequestException {
+        int header = findHeader("content-length");
+        if (header < 0) {
+            return 0;
+        }
+        int start = headerSlices[header + 2];
+        int end = headerSlices[header + 3];
+        if (start == end || end - start > 18) {
+            throw new BadRequestException("Invalid Content-Length");
+        }
+        long length = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer[requestStart + i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new BadRequestException("Invalid Content-Length");
+            }
+            length = length * 10 + digit;
+        }
+        return length;
+    }
+
+    /**
+     * Reads the whole request body, exactly {@code Content-Length} bytes.
+     *
+     * @param maxBytes The largest body the caller accepts.
+     * @return The body bytes; empty if the request has no body.
+     * @throws BadRequestException If the body is larger than {@code maxBytes}, or arrives too
+     *                             slowly.
+     * @throws EOFException        If the client closes the connection before sending it all.
+     * @throws IOException         If reading from the connection fails.
+     */
+    public byte[] readBody(int maxBytes) throws IOException {
+        if (unreadBody > maxBytes) {
+            throw new BadRequestException(413, "Payload Too Large", "Request body too large");
+        }
+        byte[] body = new byte[(int) unreadBody];
+        int read = Math.min(body.length, limit - position);
+        System.arraycopy(buffer, position, body, 0, read);
+        position += read;
+        long alreadyRead = bodyLength - unreadBody;
+        while (read < body.length) {
+            int n = readBodyBytes(alreadyRead + read, body, read, body.length - read);
+            if (n < 0) {
+                throw new EOFException("Connection closed in the middle of a request body");
+            }
+            read += n;
+        }
+        unreadBody = 0;
+        return body;
+    }
+
+    /**
+     * Returns a copy of the current request's line and headers as they were received.
+     *
+     * @return The head, up to and including the blank line that ends it.
+     */
+    public byte[] copyHead() {
+        return Arrays.copyOfRange(buffer, requestStart, requestStart + headLength);
+    }
+
+    /**
+     * Checks whether anything the client sent is still waiting to be parsed: a pipelined
+     * request already read, or part of the current request's body.
+     *
+     * @return {@code true} if the next call to {@link #next()} may not need to wait for the
+     *         client.
+     */
+    public boolean hasBufferedInput() {
+        return position < limit || unreadBody > 0;
+    }
+
+    /**
+     * Waits briefly for the next request to start arriving, once the current one has been
+     * answered. The current request can no longer be inspected afterwards.
+     *
+     * @param millis How long to wait.
+     * @return {@code true} if input is waiting to be parsed or the client has closed the
+     *         connection, or {@code false} if nothing arrived in time.
+     * @throws IOException If reading from the connection fails.
+     */
+    public boolean awaitInput(int millis) throws IOException {
+        if (hasBufferedInput()) {
+            return true;
+        }
+        position = limit = requestStart = 0;
+        try {
+            setReadTimeout(millis);
+            // at the end of the stream, next() finds that out for itself
+            fill();
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Hands over the rest of the connection, for a request that switches it to another protocol.
+     * Whatever was read past the current request's body comes first. The parser must not be
+     * used to read from the connection afterwards, but the current request can still be
+     * inspected.
+     *
+     * @return A stream of everything the client sends after the current request.
+     * @throws IOException If skipping the current request's body fails.
+     */
+    public InputStream takeRemainingInput() throws IOException {
+        skipBody();
+        InputStream buffered = new ByteArrayInputStream(Arrays.copyOfRange(buffer, position, limit));
+        position = limit;
+        return new SequenceInputStream(buffered, in);
+    }
+
+    /**
+     * Discards the rest of the current request's body.
+     */
+    private void skipBody() throws IOException {
+        int buffered = (int) Math.min(unreadBody, limit - position);
+        position += buffered;
+        unreadBody -= buffered;
+        byte[] discard = null;
+        while (unreadBody > 0) {
+            if (discard == null) {
+                discard = new byte[(int) Math.min(unreadBody, INITIAL_BUFFER)];
+            }
+            int n = readBodyBytes(bodyLength - unreadBody, discard, 0, (int) Math.min(unreadBody, discard.length));
+            if (n < 0) {
+                throw new EOFException("Connection closed in the middle of a request body");
+            }
+            unreadBody -= n;
+        }
+    }
+
+    /**
+     * Reads part of a body from the connection, within the body timeout and minimum rate.
+     *
+     * @param received How many bytes of the body have arrived before this read.
+     * @return The number of bytes read, or -1 if the stream has ended.
+     */
+    private int readBodyBytes(long received, byte[] bytes, int offset, int length) throws IOException {
+        long timeout = limits.bodyReadTimeout(bodyStartedAt, received);
+        if (timeout < 0) {
+            throw bodyTimeout();
+        }
+        try {
+            setReadTimeout(timeout);
+            return in.read(bytes, offset, length);
+        } catch (SocketTimeoutException e) {
+            throw bodyTimeout();
+        }
+    }
+
+    /**
+     * Returns how much of the header timeout is left.
+     */
+    private long remainingHeadMillis(long headStartedAt) throws BadRequestException {
+        long timeout = limits.getHeaderTimeoutMillis();
+        if (timeout <= 0) {
+            return 0;
+        }
+        long remaining = timeout - (System.nanoTime() - headStartedAt) / 1_000_000;
+        if (remaining <= 0) {
+            throw headTimeout();
+        }
+        return remaining;
+    }
+
+    private void setReadTimeout(long millis) throws SocketException {
+        if (socket != null) {
+            socket.setSoTimeout((int) Math.min(millis, Integer.MAX_VALUE));
+        }
+    }
+
+    private static BadRequestException headTimeout() {
+        return new BadRequestException(408, "Request Timeout", "Request head not received in time");
+    }
+
+    private static BadRequestException bodyTimeout() {
+        return new BadRequestException(408, "Request Timeout", "Request body not received in time");
+    }
+
+    /**
+     * Reads more bytes into the buffer. If the buffer is full, the request being parsed is moved
+     * to the front, or the buffer grown if it already starts there.
+     *
+     * @return {@code false} if the stream has ended.
+     */
+    private boolean fill() throws IOException {
+        if (limit == buffer.length) {
+            if (requestStart > 0) {
+                System.arraycopy(buffer, requestStart, buffer, 0, limit - requestStart);
+                limit -= requestStart;
+                requestStart = 0;
+            } else {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+        int n = in.read(buffer, limit, buffer.length - limit);
+        if (n < 0) {
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+    private void addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) throws BadRequestException {
+        if (headerCount == MAX_HEADERS) {
+            throw new BadRequestException(431, "Request Header Fields Too Large", "Too many headers");
+        }
+        if (headerSlices.length < (headerCount + 1) * 4) {
+            headerSlices = Arrays.copyOf(headerSlices, headerSlices.length * 2);
+        }
+        // header names may not be followed by whitespace, but tolerate it as the old parser did
+        while (nameEnd > nameStart && isWhitespace(buffer[requestStart + nameEnd - 1])) {
+            nameEnd--;
+        }
+        while (valueStart < valueEnd && isWhitespace(buffer[requestStart + valueStart])) {
+            valueStart++;
+        }
+        while (valueEnd > valueStart && isWhitespace(buffer[requestStart + valueEnd - 1])) {
+            valueEnd--;
+        }
+        int slot = headerCount * 4;
+        headerSlices[slot] = nameStart;
+        headerSlices[slot + 1] = nameEnd;
+        headerSlices[slot + 2] = valueStart;
+        headerSlices[slot + 3] = valueEnd;
+        headerCount++;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private int findHeader(String name) {
+        for (int header = (headerCount - 1) * 4; header >= 0; header -= 4) {
+            int start = headerSlices[header];
+            int end = headerSlices[header + 1];
+            if (end - start != name.length()) {
+                continue;
+            }
+            int i = 0;
+            while (i < name.length()) {
+                int b = buffer[requestStart + start + i];
+                if (b >= 'A' && b <= 'Z') {
+                    b += 'a' - 'A';
+                }
+                if (b != name.charAt(i)) {
+                    break;
+                }
+                i++;
+            }
+            if (i == name.length()) {
+                return header;
+            }
+        }
+        return -1;
+    }
+
+    private boolean equalsAscii(int start, int end, String other) {
+        if (end - start != other.length()) {
+            return false;
+        }
+        for (int i = 0; i < other.length(); i++) {
+            if (buffer[requestStart + start + i] != other.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String ascii(int start, int end) {
+        return new String(buffer, requestStart + start, end - start, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,166 @@
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from {@code int} keys to {@code long} values, so that large
+ * indexes can be kept without boxing every entry. Not thread-safe.
+ */
+public class IntLongMap {
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private long[] values;
+    private int size;
+
+    /**
+     * Constructs an empty map.
+     */
+    public IntLongMap() {
+        this(16);
+    }
+
+    /**
+     * Constructs an empty map sized for roughly the given number of entries.
+     *
+     * @param expectedSize The number of entries expected.
+     */
+    public IntLongMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new int[capacity];
+        values = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Returns the value stored for a key.
+     *
+     * @param key          The key to look up. {@code Integer.MIN_VALUE} is not a valid key.
+     * @param defaultValue The value to return when the key is absent.
+     * @return The stored value, or {@code defaultValue}.
+     */
+    public long get(int key, long defaultValue) {
+        int slot = find(key);
+        return slot < 0 ? defaultValue : values[slot];
+    }
+
+    /**
+     * Checks whether a key is present.
+     *
+     * @param key The key to look for.
+     * @return {@code true} if the key has a value.
+     */
+    public boolean containsKey(int key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Stores a value for a key, replacing any previous value.
+     *
+     * @param key   The key. {@code Integer.MIN_VALUE} is not a valid key.
+     * @param value The value to store.
+     */
+    public void put(int key, long value) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Integer.MIN_VALUE cannot be used as a key.");
+        }
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length << 1);
+        }
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @param key The key to remove.
+     * @return {@code true} if the key was present.
+     */
+    public boolean remove(int key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return false;
+        }
+        // backward-shift deletion keeps probe sequences intact without tombstones
+        int mask = keys.length - 1;
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (keys[next] != EMPTY) {
+            int home = mix(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[gap] = EMPTY;
+        size--;
+        return true;
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return The number of keys in the map.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a copy of all keys, in no particular order.
+     *
+     * @return An array of the keys currently in the map.
+     */
+    public int[] keys() {
+        int[] result = new int[size];
+        int n = 0;
+        for (int key : keys) {
+            if (key != EMPTY) {
+                result[n++] = key;
+            }
+        }
+        return result;
+    }
+
+    private int find(int key) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new int[capacity];
+        values = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,272 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * A full-text index over chirp content. Each term maps to a posting list of chirp IDs held as a
+ * sorted primitive {@code int} array, so lookups and intersections never box.
+ *
+ * Content is tokenised by lower-casing it and splitting on anything that is not a letter, digit,
+ * {@code #}, {@code @} or {@code _}, so hashtags and mentions are searchable as terms.
+ *
+ * The index also keeps each chirp's posting time, so matches can be ranked by recency without
+ * loading the chirps themselves from the store.
+ */
+public class InvertedIndex {
+    private final Map<String, Postings> postings = new HashMap<>();
+    private final IntLongMap postedAt = new IntLongMap();
+
+    /**
+     * A growable sorted array of chirp IDs.
+     */
+    private static final class Postings {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0) {
+                return;
+            }
+            index = -index - 1;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            ids[index] = id;
+            size++;
+        }
+
+        void remove(int id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0) {
+                System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+                size--;
+            }
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(ids, size);
+        }
+    }
+
+    /**
+     * Adds a chirp's content to the index.
+     *
+     * @param chirp The chirp to index.
+     */
+    public synchronized void add(Chirp chirp) {
+        for (String term : tokenize(chirp.getContentChars())) {
+            postings.computeIfAbsent(term, t -> new Postings()).add(chirp.getId());
+        }
+        postedAt.put(chirp.getId(), chirp.getPostedAtMillis());
+    }
+
+    /**
+     * Removes a chirp's content from the index.
+     *
+     * @param chirp The chirp to remove, as it was when it was added.
+     */
+    public synchronized void remove(Chirp chirp) {
+        for (String term : tokenize(chirp.getContentChars())) {
+            Postings list = postings.get(term);
+            if (list != null) {
+                list.remove(chirp.getId());
+                if (list.size == 0) {
+                    postings.remove(term);
+                }
+            }
+        }
+        postedAt.remove(chirp.getId());
+    }
+
+    /**
+     * Finds the chirps matching a query. Terms separated by whitespace must all match; alternatives
+     * can be given with {@code OR}, e.g. {@code "coffee OR tea morning"} matches chirps containing
+     * "morning" and at least one of "coffee" or "tea". An explicit {@code AND} is also accepted.
+     *
+     * @param query The query text.
+     * @return The matching chirp IDs in ascending order.
+     */
+    public int[] search(String query) {
+        List<List<String>> clauses = parse(query);
+        if (clauses.isEmpty()) {
+            return new int[0];
+        }
+        int[] result = null;
+        synchronized (this) {
+            for (List<String> alternatives : clauses) {
+                int[] matches = new int[0];
+                for (String term : alternatives) {
+                    Postings list = postings.get(term);
+                    if (list != null) {
+                        matches = union(matches, list.toArray());
+                    }
+                }
+                result = result == null ? matches : intersect(result, matches);
+                if (result.length == 0) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the most recently posted chirps matching a query, as {@link #search(String)} does.
+     * Matches are ranked by the posting times held in the index, so only the chirps returned
+     * need to be loaded.
+     *
+     * @param query The query text.
+     * @param limit The most IDs to return.
+     * @return The IDs of up to {@code limit} matching chirps, newest first.
+     */
+    public int[] searchNewest(String query, int limit) {
+        int[] matches = search(query);
+        if (limit <= 0) {
+            return new int[0];
+        }
+        PriorityQueue<ChirpKey> newest = new PriorityQueue<>();
+        synchronized (this) {
+            for (int id : matches) {
+                // a chirp removed since the search has no time left, and is skipped
+                long time = postedAt.get(id, Long.MIN_VALUE);
+                if (time == Long.MIN_VALUE) {
+                    continue;
+                }
+                ChirpKey key = new ChirpKey(time, id);
+                if (newest.size() < limit) {
+                    newest.add(key);
+                } else if (key.compareTo(newest.peek()) > 0) {
+                    newest.poll();
+                    newest.add(key);
+                }
+            }
+        }
+        int[] ids = new int[newest.size()];
+        for (int i = ids.length - 1; i >= 0; i--) {
+            ids[i] = newest.poll().getId();
+        }
+        return ids;
+    }
+
+    /**
+     * Splits text into distinct index terms. A hashtag or mention is indexed both with and
+     * without its leading {@code #} or {@code @}, so searching "blessed" also finds "#blessed".
+     *
+     * ASCII text, the usual case, is scanned in place; anything else is lower-cased and split with
+     * Unicode letter and digit classes.
+     *
+     * @param text The text to tokenise.
+     * @return The distinct terms in the order they first appear.
+     */
+    public static Set<String> tokenize(CharSequence text) {
+        Set<String> terms = new LinkedHashSet<>();
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (c >= 0x80) {
+                return tokenizeUnicode(text.toString());
+            }
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '#' || c == '@' || c == '_') {
+                token.append(c);
+            } else if (c >= 'A' && c <= 'Z') {
+                token.append((char) (c + ('a' - 'A')));
+            } else if (token.length() > 0) {
+                addTerm(terms, token.toString());
+                token.setLength(0);
+            }
+        }
+        return terms;
+    }
+
+    private static Set<String> tokenizeUnicode(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String token : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}#@_]+")) {
+            if (!token.isEmpty()) {
+                addTerm(terms, token);
+            }
+        }
+        return terms;
+    }
+
+    private static void addTerm(Set<String> terms, String token) {
+        terms.add(token);
+        int start = 0;
+        while (start < token.length() && (token.charAt(start) == '#' || token.charAt(start) == '@')) {
+            start++;
+        }
+        if (start < token.length()) {
+            terms.add(token.substring(start));
+        }
+    }
+
+    /**
+     * Parses a query into AND-ed clauses, each a list of OR-ed terms.
+     */
+    private static List<List<String>> parse(String query) {
+        List<List<String>> clauses = new ArrayList<>();
+        boolean orNext = false;
+        for (String word : query.trim().split("\\s+")) {
+            if (word.equals("OR")) {
+                orNext = !clauses.isEmpty();
+                continue;
+            }
+            if (word.equals("AND")) {
+                continue;
+            }
+            // every term of a word after OR is an alternative, e.g. both "#tea" and "tea"
+            for (String term : tokenize(word)) {
+                if (orNext) {
+                    clauses.get(clauses.size() - 1).add(term);
+                } else {
+                    List<String> clause = new ArrayList<>();
+                    clause.add(term);
+                    clauses.add(clause);
+                }
+            }
+            orNext = false;
+        }
+        return clauses;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        int[] result = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                result[n++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                result[n++] = b[j++];
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+}
@@ -0,0 +1,145 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A {@code ChirpBackend} that keeps chirp payloads outside the Java heap, in direct
+ * {@code ByteBuffer} arenas. The heap only holds a primitive index from chirp ID to the
+ * record's position, and {@code Chirp} objects are decoded on demand when they are read.
+ * Records use the layout described in {@code ChirpRecord}.
+ */
+public class OffHeapChirpBackend implements ChirpBackend {
+    private static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final int chunkSize;
+    private List<ByteBuffer> chunks = new ArrayList<>();
+    private IntLongMap index = new IntLongMap();
+    private long usedBytes;
+    private long liveBytes;
+
+    /**
+     * Constructs an off-heap backend with the default arena chunk size.
+     */
+    public OffHeapChirpBackend() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructs an off-heap backend.
+     *
+     * @param chunkSize The size in bytes of each direct buffer allocated for the arena.
+     */
+    public OffHeapChirpBackend(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public synchronized Chirp get(int id) {
+        long location = index.get(id, -1L);
+        return location < 0 ? null : decode(location);
+    }
+
+    @Override
+    public synchronized void put(Chirp chirp) {
+        long previous = index.get(chirp.getId(), -1L);
+        if (previous >= 0) {
+            liveBytes -= recordLength(previous);
+        }
+        long location = append(chirp);
+        index.put(chirp.getId(), location);
+        liveBytes += recordLength(location);
+        if (previous >= 0) {
+            compactIfSparse();
+        }
+    }
+
+    @Override
+    public synchronized Chirp remove(int id) {
+        long location = index.get(id, -1L);
+        if (location < 0) {
+            return null;
+        }
+        Chirp removed = decode(location);
+        index.remove(id);
+        liveBytes -= recordLength(location);
+        compactIfSparse();
+        return removed;
+    }
+
+    @Override
+    public synchronized boolean contains(int id) {
+        return index.containsKey(id);
+    }
+
+    @Override
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Returns a snapshot of the stored chirps, decoded from the arena while the backend is
+     * locked, so later writes are not reflected and its size matches what iterating it yields.
+     */
+    @Override
+    public synchronized Collection<Chirp> values() {
+        List<Chirp> chirps = new ArrayList<>(index.size());
+        for (int id : index.keys()) {
+            chirps.add(decode(index.get(id, -1L)));
+        }
+        return chirps;
+    }
+
+    /**
+     * Returns the number of bytes in the arena that belong to chirps still in the store.
+     *
+     * @return The live off-heap bytes.
+     */
+    public synchronized long getLiveBytes() {
+        return liveBytes;
+    }
+
+    private long append(Chirp chirp) {
+        int length = ChirpRecord.length(chirp);
+        ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || chunk.remaining() < length) {
+            chunk = ByteBuffer.allocateDirect(Math.max(chunkSize, length));
+            chunks.add(chunk);
+        }
+        int offset = chunk.position();
+        ChirpRecord.write(chunk, chirp);
+        usedBytes += length;
+        return ((long) (chunks.size() - 1) << 32) | offset;
+    }
+
+    private Chirp decode(long location) {
+        return decode(chunks, location);
+    }
+
+    private static Chirp decode(List<ByteBuffer> chunks, long location) {
+        return ChirpRecord.read(chunks.get((int) (location >>> 32)), (int) location);
+    }
+
+    private int recordLength(long location) {
+        return ChirpRecord.length(chunks.get((int) (location >>> 32)), (int) location);
+    }
+
+    /**
+     * Copies the live records into fresh chunks once more than half the arena is garbage
+     * left behind by updates and deletes.
+     */
+    private void compactIfSparse() {
+        if (usedBytes < chunkSize || liveBytes * 2 > usedBytes) {
+            return;
+        }
+        List<ByteBuffer> oldChunks = chunks;
+        IntLongMap oldIndex = index;
+        chunks = new ArrayList<>();
+        index = new IntLongMap(oldIndex.size());
+        usedBytes = 0;
+        for (int id : oldIndex.keys()) {
+            Chirp chirp = decode(oldChunks, oldIndex.get(id, -1L));
+            index.put(id, append(chirp));
+        }
+    }
+}
@@ -0,0 +1,223 @@
+import java.util.AbstractCollection;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable collection of chirps indexed by ID. Adding or removing a chirp returns a new
+ * map that shares every untouched branch with the old one, so a reader holding a map always
+ * sees a consistent snapshot and taking a snapshot never copies anything.
+ *
+ * The map is a bitmapped trie over the bits of the chirp ID, five bits per level starting with
+ * the highest, so iteration visits chirps in ascending ID order just as the timeline did when
+ * the store was a {@code HashMap}.
+ */
+public final class PersistentChirpMap extends AbstractCollection<Chirp> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final int TOP_SHIFT = 30;
+
+    /**
+     * The empty map.
+     */
+    public static final PersistentChirpMap EMPTY = new PersistentChirpMap(new Node(0, new Object[0]), 0);
+
+    private final Node root;
+    private final int size;
+
+    /**
+     * A trie node. Each set bit of {@code bitmap} has an entry in {@code slots}, which is either
+     * a {@code Chirp} stored at that position or a child {@code Node}.
+     */
+    private static final class Node {
+        final int bitmap;
+        final Object[] slots;
+
+        Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+    }
+
+    private PersistentChirpMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Retrieves a chirp by its ID.
+     *
+     * @param id The ID of the chirp to retrieve.
+     * @return The {@code Chirp} with the specified ID, or {@code null} if there is none.
+     */
+    public Chirp get(int id) {
+        Node node = root;
+        for (int shift = TOP_SHIFT; ; shift -= BITS) {
+            int bit = bit(id, shift);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            Object slot = node.slots[Integer.bitCount(node.bitmap & (bit - 1))];
+            if (slot instanceof Node) {
+                node = (Node) slot;
+            } else {
+                Chirp chirp = (Chirp) slot;
+                return chirp.getId() == id ? chirp : null;
+            }
+        }
+    }
+
+    /**
+     * Returns a map that also contains the given chirp, replacing any chirp with the same ID.
+     *
+     * @param chirp The chirp to add.
+     * @return The new map; this map is unchanged.
+     */
+    public PersistentChirpMap with(Chirp chirp) {
+        boolean[] replaced = new boolean[1];
+        Node newRoot = with(root, chirp, TOP_SHIFT, replaced);
+        return new PersistentChirpMap(newRoot, replaced[0] ? size : size + 1);
+    }
+
+    /**
+     * Returns a map without the chirp with the given ID.
+     *
+     * @param id The ID of the chirp to remove.
+     * @return The new map, or this map if it has no chirp with that ID.
+     */
+    public PersistentChirpMap without(int id) {
+        if (get(id) == null) {
+            return this;
+        }
+        Node newRoot = without(root, id, TOP_SHIFT);
+        return new PersistentChirpMap(newRoot == null ? EMPTY.root : newRoot, size - 1);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<Chirp> iterator() {
+        return new Iterator<Chirp>() {
+            private final Deque<Node> nodes = new ArrayDeque<>();
+            private final Deque<Integer> positions = new ArrayDeque<>();
+            private Chirp next;
+
+            {
+                nodes.push(root);
+                positions.push(0);
+                next = advance();
+            }
+
+            private Chirp advance() {
+                while (!nodes.isEmpty()) {
+                    Node node = nodes.peek();
+                    int position = positions.pop();
+                    if (position == node.slots.length) {
+                        nodes.pop();
+                        continue;
+                    }
+                    positions.push(position + 1);
+                    Object slot = node.slots[position];
+                    if (slot instanceof Node) {
+                        nodes.push((Node) slot);
+                        positions.push(0);
+                    } else {
+                        return (Chirp) slot;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Chirp next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Chirp current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    private static Node with(Node node, Chirp chirp, int shift, boolean[] replaced) {
+        int bit = bit(chirp.getId(), shift);
+        int index = Integer.bitCount(node.bitmap & (bit - 1));
+        if ((node.bitmap & bit) == 0) {
+            Object[] slots = new Object[node.slots.length + 1];
+            System.arraycopy(node.slots, 0, slots, 0, index);
+            slots[index] = chirp;
+            System.arraycopy(node.slots, index, slots, index + 1, node.slots.length - index);
+            return new Node(node.bitmap | bit, slots);
+        }
+
+        Object slot = node.slots[index];
+        Object replacement;
+        if (slot instanceof Node) {
+            replacement = with((Node) slot, chirp, shift - BITS, replaced);
+        } else if (((Chirp) slot).getId() == chirp.getId()) {
+            replaced[0] = true;
+            replacement = chirp;
+        } else {
+            replacement = pair((Chirp) slot, chirp, shift - BITS);
+        }
+        Object[] slots = node.slots.clone();
+        slots[index] = replacement;
+        return new Node(node.bitmap, slots);
+    }
+
+    /**
+     * Builds the smallest subtree holding two chirps whose IDs agree on the bits above {@code shift}.
+     */
+    private static Node pair(Chirp a, Chirp b, int shift) {
+        int aBit = bit(a.getId(), shift);
+        int bBit = bit(b.getId(), shift);
+        if (aBit == bBit) {
+            return new Node(aBit, new Object[] { pair(a, b, shift - BITS) });
+        }
+        Object[] slots = Integer.compareUnsigned(aBit, bBit) < 0 ? new Object[] { a, b } : new Object[] { b, a };
+        return new Node(aBit | bBit, slots);
+    }
+
+    /**
+     * Returns the bitmap bit for an ID at one level. The sign bit is flipped so that negative
+     * IDs sort before positive ones.
+     */
+    private static int bit(int id, int shift) {
+        return 1 << (((id ^ Integer.MIN_VALUE) >>> shift) & MASK);
+    }
+
+    /**
+     * Removes an ID known to be present, returning {@code null} if the node becomes empty.
+     */
+    private static Node without(Node node, int id, int shift) {
+        int bit = bit(id, shift);
+        int index = Integer.bitCount(node.bitmap & (bit - 1));
+        Object slot = node.slots[index];
+        if (slot instanceof Node) {
+            Node child = without((Node) slot, id, shift - BITS);
+            if (child != null) {
+                Object[] slots = node.slots.clone();
+                // a child left with a single chirp collapses back into this node
+                slots[index] = child.slots.length == 1 && !(child.slots[0] instanceof Node) ? child.slots[0] : child;
+                return new Node(node.bitmap, slots);
+            }
+        }
+        if (node.slots.length == 1) {
+            return null;
+        }
+        Object[] slots = new Object[node.slots.length - 1];
+        System.arraycopy(node.slots, 0, slots, 0, index);
+        System.arraycopy(node.slots, index + 1, slots, index, slots.length - index);
+        return new Node(node.bitmap & ~bit, slots);
+    }
+}
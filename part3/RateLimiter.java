@@ -0,0 +1,136 @@
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-client token buckets that limit how fast each IP address may use each class of route.
+ *
+ * Every bucket is a single {@code AtomicLong} holding the token count (in thousandths of a
+ * token) and the time it was last refilled, updated with compare-and-set so requests never
+ * wait on a lock. Buckets idle long enough to have refilled completely are indistinguishable
+ * from new ones, so they are swept away periodically to keep memory bounded.
+ */
+public class RateLimiter {
+    /**
+     * The classes of route that get separate budgets.
+     */
+    public enum RouteClass {
+        /** Cheap reads: static files, single chirps, searches and other indexed queries. */
+        READ,
+        /** The full federated timeline, which fans out to every federated server. */
+        TIMELINE,
+        /** Anything that changes the store. */
+        WRITE
+    }
+
+    private static final long MILLI_TOKENS = 1000;
+    private static final int SWEEP_EVERY = 4096;
+
+    private final long[] ratePerSecond = new long[RouteClass.values().length];
+    private final long[] burst = new long[RouteClass.values().length];
+    private final long startMillis = System.currentTimeMillis();
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicInteger requestsSinceSweep = new AtomicInteger();
+
+    /**
+     * Constructs a limiter. A class with a rate of zero or less is not limited.
+     *
+     * @param config The configuration holding the rate and burst for each route class.
+     */
+    public RateLimiter(Configuration config) {
+        setLimit(RouteClass.READ, config.rateLimitReadPerSecond_, config.rateLimitReadBurst_);
+        setLimit(RouteClass.TIMELINE, config.rateLimitTimelinePerSecond_, config.rateLimitTimelineBurst_);
+        setLimit(RouteClass.WRITE, config.rateLimitWritePerSecond_, config.rateLimitWriteBurst_);
+    }
+
+    private void setLimit(RouteClass routeClass, int perSecond, int burstSize) {
+        ratePerSecond[routeClass.ordinal()] = perSecond;
+        burst[routeClass.ordinal()] = Math.max(1, burstSize);
+    }
+
+    /**
+     * Takes one token from a client's bucket for a route class.
+     *
+     * @param client     The client's address.
+     * @param routeClass The class of route being requested.
+     * @return 0 if the request may go ahead, otherwise the number of seconds until a token will
+     *         be available, for {@code Retry-After}.
+     */
+    public long tryAcquire(InetAddress client, RouteClass routeClass) {
+        long rate = ratePerSecond[routeClass.ordinal()];
+        if (rate <= 0) {
+            return 0;
+        }
+        if (requestsSinceSweep.incrementAndGet() >= SWEEP_EVERY) {
+            requestsSinceSweep.set(0);
+            sweep();
+        }
+
+        long capacity = burst[routeClass.ordinal()] * MILLI_TOKENS;
+        long now = System.currentTimeMillis() - startMillis;
+        AtomicLong bucket = buckets.computeIfAbsent(client.getHostAddress() + "/" + routeClass, key -> new AtomicLong(pack(capacity, now)));
+        while (true) {
+            long state = bucket.get();
+            long elapsed = elapsed(state, now);
+            long available = Math.min(capacity, tokens(state) + elapsed * rate);
+            if (available < MILLI_TOKENS) {
+                long missing = MILLI_TOKENS - available;
+                long waitMillis = (missing + rate - 1) / rate;
+                return Math.max(1, (waitMillis + 999) / 1000);
+            }
+            if (bucket.compareAndSet(state, pack(available - MILLI_TOKENS, now))) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of buckets currently held.
+     *
+     * @return The bucket count.
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+    /**
+     * Removes buckets that have been idle long enough to be full again.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis() - startMillis;
+        Iterator<Map.Entry<String, AtomicLong>> entries = buckets.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, AtomicLong> entry = entries.next();
+            String key = entry.getKey();
+            RouteClass routeClass = RouteClass.valueOf(key.substring(key.lastIndexOf('/') + 1));
+            long refillMillis = burst[routeClass.ordinal()] * MILLI_TOKENS / Math.max(1, ratePerSecond[routeClass.ordinal()]);
+            if (elapsed(entry.getValue().get(), now) > refillMillis) {
+                entries.remove();
+            }
+        }
+    }
+
+    // a bucket's state packs the token count (thousandths) into the high 32 bits and the
+    // milliseconds since the limiter started into the low 32 bits
+    private static long pack(long milliTokens, long millis) {
+        return (milliTokens << 32) | (millis & 0xFFFFFFFFL);
+    }
+
+    private static long tokens(long state) {
+        return state >>> 32;
+    }
+
+    private static long time(long state) {
+        return state & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Returns the milliseconds since a bucket was last refilled, correct across the 32-bit wrap.
+     */
+    private static long elapsed(long state, long now) {
+        return (now - time(state)) & 0xFFFFFFFFL;
+    }
+}
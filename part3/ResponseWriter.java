@@ -0,0 +1,436 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes HTTP responses to a connection through pooled direct buffers.
+ *
+ * The status line and headers are rendered straight into a pooled direct buffer from
+ * pre-encoded bytes, and the body is encoded as UTF-8 into a second pooled buffer, so sending a
+ * response allocates next to nothing. The two buffers go out together in one gathering write, so
+ * a small response leaves in a single system call and usually a single TCP segment. Larger
+ * bodies are encoded and written one buffer at a time.
+ */
+public final class ResponseWriter {
+    private static final int HEAD_BUFFER_SIZE = 4 * 1024;
+    private static final int BODY_BUFFER_SIZE = 64 * 1024;
+    private static final int POOL_SIZE = 64;
+    private static final int MAX_CACHED_CONTENT_TYPES = 64;
+
+    private static final ArrayBlockingQueue<ByteBuffer> headBuffers = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final ArrayBlockingQueue<ByteBuffer> bodyBuffers = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final ConcurrentHashMap<String, StatusLine> statusLines = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, byte[]> contentTypes = new ConcurrentHashMap<>();
+    private static final ThreadLocal<CharsetEncoder> encoders = ThreadLocal.withInitial(() -> StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+    private static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] CRLF = ascii("\r\n");
+
+    private final WritableByteChannel channel;
+    private boolean headOnly;
+    private ConnectionLimits.WriteTimer writeTimer;
+
+    /**
+     * A pre-encoded status line, cached by its reason phrase.
+     */
+    private static final class StatusLine {
+        final int code;
+        final byte[] bytes;
+
+        StatusLine(int code, String message) {
+            this.code = code;
+            this.bytes = ascii("HTTP/1.1 " + code + " " + message + "\r\n");
+        }
+    }
+
+    /**
+     * Constructs a writer for a connection.
+     *
+     * @param socket The client's socket. If it was accepted from a {@code ServerSocketChannel},
+     *               responses are written to its channel; otherwise to its output stream.
+     * @throws IOException If the socket's output stream cannot be opened.
+     */
+    public ResponseWriter(Socket socket) throws IOException {
+        this(socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream()));
+    }
+
+    /**
+     * Constructs a writer for a connection's channel, e.g. a {@link TlsChannel}.
+     *
+     * @param channel The channel responses are written to.
+     */
+    public ResponseWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Sets whether responses are sent without their bodies, as for a {@code HEAD} request. The
+     * headers, including {@code Content-Length}, are the same either way.
+     *
+     * @param headOnly {@code true} to leave out bodies until this is called again.
+     */
+    public void setHeadOnly(boolean headOnly) {
+        this.headOnly = headOnly;
+    }
+
+    /**
+     * Sets the timer that watches this writer's writes, so that a client which stops reading
+     * has its connection closed instead of blocking the writing thread forever.
+     *
+     * @param writeTimer The timer, or {@code null} for writes without a timeout.
+     */
+    public void setWriteTimer(ConnectionLimits.WriteTimer writeTimer) {
+        this.writeTimer = writeTimer;
+    }
+
+    /**
+     * Sends a complete response with a text body.
+     *
+     * @param statusCode    The status code, e.g. 200.
+     * @param statusMessage The reason phrase, e.g. {@code OK}.
+     * @param contentType   The body's media type.
+     * @param body          The body, sent as UTF-8.
+     * @param extraHeaders  Further header lines, each without its trailing CRLF.
+     * @throws IOException If writing to the connection fails.
+     */
+    public void send(int statusCode, String statusMessage, String contentType, String body, String... extraHeaders) throws IOException {
+        ByteBuffer head = renderHead(statusCode, statusMessage, contentType, utf8Length(body), extraHeaders);
+        if (headOnly) {
+            write(head, null);
+            return;
+        }
+        ByteBuffer chunk = acquire(bodyBuffers, BODY_BUFFER_SIZE);
+        try {
+            CharsetEncoder encoder = encoders.get().reset();
+            CharBuffer chars = CharBuffer.wrap(body);
+            boolean done = false;
+            while (!done) {
+                CoderResult result = encoder.encode(chars, chunk, true);
+                if (result.isUnderflow()) {
+                    done = encoder.flush(chunk).isUnderflow();
+                }
+                chunk.flip();
+                // the head goes out with the first chunk, which is usually the whole body
+                write(head, chunk);
+                head = null;
+                chunk.clear();
+            }
+        } finally {
+            release(bodyBuffers, chunk);
+        }
+    }
+
+    /**
+     * Sends a complete response with a binary body.
+     *
+     * @param statusCode    The status code, e.g. 200.
+     * @param statusMessage The reason phrase, e.g. {@code OK}.
+     * @param contentType   The body's media type.
+     * @param body          The body.
+     * @param extraHeaders  Further header lines, each without its trailing CRLF.
+     * @throws IOException If writing to the connection fails.
+     */
+    public void send(int statusCode, String statusMessage, String contentType, byte[] body, String... extraHeaders) throws IOException {
+        ByteBuffer head = renderHead(statusCode, statusMessage, contentType, body.length, extraHeaders);
+        write(head, headOnly ? null : ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Sends a complete response whose body is a file, or part of one.
+     *
+     * @param statusCode    The status code, e.g. 200.
+     * @param statusMessage The reason phrase, e.g. {@code OK}.
+     * @param contentType   The file's media type, or {@code null} if it is unknown.
+     * @param file          The open file.
+     * @param position      The offset of the first byte to send.
+     * @param length        The number of bytes to send.
+     * @param extraHeaders  Further header lines, each without its trailing CRLF.
+     * @throws IOException If reading the file or writing to the connection fails.
+     */
+    public void sendFile(int statusCode, String statusMessage, String contentType, FileChannel file, long position, long length, String... extraHeaders) throws IOException {
+        ByteBuffer head = renderHead(statusCode, statusMessage, contentType, length, extraHeaders);
+        if (headOnly) {
+            write(head, null);
+            return;
+        }
+        if (length <= BODY_BUFFER_SIZE) {
+            // small files are read into a pooled buffer and gathered with the head
+            ByteBuffer chunk = acquire(bodyBuffers, BODY_BUFFER_SIZE);
+            try {
+                chunk.limit((int) length);
+                while (chunk.hasRemaining()) {
+                    if (file.read(chunk, position + chunk.position()) < 0) {
+                        throw new IOException("File ended before the response was complete");
+                    }
+                }
+                chunk.flip();
+                write(head, chunk);
+            } finally {
+                release(bodyBuffers, chunk);
+            }
+            return;
+        }
+        write(head, null);
+        transfer(file, position, length);
+    }
+
+    /**
+     * Sends several ranges of a file as a {@code 206 Partial Content} response of type
+     * {@code multipart/byteranges}, each part copied straight from the file channel.
+     *
+     * @param contentType  The file's media type, or {@code null} if it is unknown.
+     * @param file         The open file.
+     * @param size         The size of the whole file.
+     * @param ranges       Pairs of first and last byte offsets (inclusive), as returned by
+     *                     {@link ByteRanges#parse(String, long)}.
+     * @param extraHeaders Further header lines, each without its trailing CRLF.
+     * @throws IOException If reading the file or writing to the connection fails.
+     */
+    public void sendFileRanges(String contentType, FileChannel file, long size, long[] ranges, String... extraHeaders) throws IOException {
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(System.nanoTime());
+        String partType = "Content-Type: " + (contentType == null ? "application/octet-stream" : contentType) + "\r\n";
+        byte[][] partHeads = new byte[ranges.length / 2][];
+        long length = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            partHeads[i / 2] = ascii("\r\n--" + boundary + "\r\n" + partType +
+                                     "Content-Range: bytes " + ranges[i] + "-" + ranges[i + 1] + "/" + size + "\r\n\r\n");
+            length += partHeads[i / 2].length + ranges[i + 1] - ranges[i] + 1;
+        }
+        byte[] closing = ascii("\r\n--" + boundary + "--\r\n");
+        length += closing.length;
+
+        ByteBuffer head = renderHead(206, "Partial Content", "multipart/byteranges; boundary=" + boundary, length, extraHeaders);
+        if (headOnly) {
+            write(head, null);
+            return;
+        }
+        for (int i = 0; i < ranges.length; i += 2) {
+            write(head, ByteBuffer.wrap(partHeads[i / 2]));
+            head = null;
+            transfer(file, ranges[i], ranges[i + 1] - ranges[i] + 1);
+        }
+        write(null, ByteBuffer.wrap(closing));
+    }
+
+    /**
+     * Copies part of a file to the connection, straight from the page cache where the platform
+     * allows it. Other channels, such as an HTTP/2 stream, are given the file a pooled buffer at
+     * a time, as {@code transferTo} would copy it through a much smaller one.
+     */
+    private void transfer(FileChannel file, long position, long length) throws IOException {
+        if (!(channel instanceof SocketChannel)) {
+            ByteBuffer chunk = acquire(bodyBuffers, BODY_BUFFER_SIZE);
+            try {
+                long sent = 0;
+                while (sent < length) {
+                    chunk.clear().limit((int) Math.min(chunk.capacity(), length - sent));
+                    if (file.read(chunk, position + sent) < 0) {
+                        throw new IOException("File ended before the response was complete");
+                    }
+                    chunk.flip();
+                    sent += chunk.remaining();
+                    write(null, chunk);
+                }
+            } finally {
+                release(bodyBuffers, chunk);
+            }
+            return;
+        }
+        long sent = 0;
+        while (sent < length) {
+            long n;
+            startWrite();
+            try {
+                n = file.transferTo(position + sent, Math.min(length - sent, ConnectionLimits.MAX_TIMED_WRITE_BYTES), channel);
+            } finally {
+                stopWrite();
+            }
+            if (n <= 0) {
+                throw new IOException("File ended before the response was complete");
+            }
+            sent += n;
+        }
+    }
+
+    /**
+     * Sends only a status line and headers, for a response whose body is written separately,
+     * such as an event stream.
+     *
+     * @param statusCode    The status code, e.g. 200.
+     * @param statusMessage The reason phrase, e.g. {@code OK}.
+     * @param contentType   The body's media type.
+     * @param extraHeaders  Further header lines, each without its trailing CRLF.
+     * @param preamble      Bytes to send straight after the headers, in the same write.
+     * @throws IOException If writing to the connection fails.
+     */
+    public void sendHead(int statusCode, String statusMessage, String contentType, String[] extraHeaders, byte[] preamble) throws IOException {
+        ByteBuffer head = renderHead(statusCode, statusMessage, contentType, -1, extraHeaders);
+        write(head, ByteBuffer.wrap(preamble));
+    }
+
+    /**
+     * Writes a rendered head followed by a chunk of body, then returns the head to the pool.
+     * Either may be {@code null}. A large body is written a timed write's worth at a time.
+     */
+    private void write(ByteBuffer head, ByteBuffer body) throws IOException {
+        int bodyLimit = body != null ? body.limit() : 0;
+        try {
+            if (head != null && body != null && channel instanceof GatheringByteChannel) {
+                ByteBuffer[] buffers = {head, body};
+                GatheringByteChannel gathering = (GatheringByteChannel) channel;
+                while (head.hasRemaining() || body.position() < bodyLimit) {
+                    body.limit(Math.min(bodyLimit, body.position() + ConnectionLimits.MAX_TIMED_WRITE_BYTES));
+                    startWrite();
+                    try {
+                        gathering.write(buffers);
+                    } finally {
+                        stopWrite();
+                    }
+                }
+                return;
+            }
+            if (head != null) {
+                while (head.hasRemaining()) {
+                    startWrite();
+                    try {
+                        channel.write(head);
+                    } finally {
+                        stopWrite();
+                    }
+                }
+            }
+            if (body != null) {
+                while (body.position() < bodyLimit) {
+                    body.limit(Math.min(bodyLimit, body.position() + ConnectionLimits.MAX_TIMED_WRITE_BYTES));
+                    startWrite();
+                    try {
+                        channel.write(body);
+                    } finally {
+                        stopWrite();
+                    }
+                }
+            }
+        } finally {
+            if (body != null) {
+                body.limit(bodyLimit);
+            }
+            if (head != null && head.isDirect()) {
+                release(headBuffers, head);
+            }
+        }
+    }
+
+    private void startWrite() {
+        if (writeTimer != null) {
+            writeTimer.start();
+        }
+    }
+
+    private void stopWrite() {
+        if (writeTimer != null) {
+            writeTimer.stop();
+        }
+    }
+
+    /**
+     * Renders the status line and headers into a buffer ready to be written.
+     *
+     * @param contentLength The body length, or -1 to leave out {@code Content-Length}.
+     */
+    private static ByteBuffer renderHead(int statusCode, String statusMessage, String contentType, long contentLength, String[] extraHeaders) {
+        StatusLine cached = statusLines.computeIfAbsent(statusMessage, message -> new StatusLine(statusCode, message));
+        byte[] statusLine = cached.code == statusCode ? cached.bytes : new StatusLine(statusCode, statusMessage).bytes;
+        if (contentType == null) {
+            contentType = "application/octet-stream";
+        }
+        byte[] type = contentTypes.get(contentType);
+        if (type == null) {
+            type = ascii(contentType);
+            // bounded, since multipart types carry a fresh boundary every time
+            if (contentTypes.size() < MAX_CACHED_CONTENT_TYPES) {
+                contentTypes.put(contentType, type);
+            }
+        }
+        int size = statusLine.length + CONTENT_TYPE.length + type.length + CRLF.length
+                 + CONTENT_LENGTH.length + 20 + CRLF.length + CRLF.length;
+        for (String header : extraHeaders) {
+            size += header.length() + CRLF.length;
+        }
+        ByteBuffer head = size <= HEAD_BUFFER_SIZE ? acquire(headBuffers, HEAD_BUFFER_SIZE) : ByteBuffer.allocate(size);
+        head.put(statusLine).put(CONTENT_TYPE).put(type).put(CRLF);
+        if (contentLength >= 0) {
+            head.put(CONTENT_LENGTH);
+            putDecimal(head, contentLength);
+            head.put(CRLF);
+        }
+        for (String header : extraHeaders) {
+            for (int i = 0; i < header.length(); i++) {
+                head.put((byte) header.charAt(i));
+            }
+            head.put(CRLF);
+        }
+        head.put(CRLF);
+        return head.flip();
+    }
+
+    private static void putDecimal(ByteBuffer buffer, long value) {
+        if (value >= 10) {
+            putDecimal(buffer, value / 10);
+        }
+        buffer.put((byte) ('0' + value % 10));
+    }
+
+    /**
+     * Returns the number of bytes a string takes as UTF-8, counting unpaired surrogates as the
+     * single replacement byte the encoder writes for them.
+     */
+    private static long utf8Length(String text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static ByteBuffer acquire(ArrayBlockingQueue<ByteBuffer> pool, int size) {
+        ByteBuffer buffer = pool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(size);
+    }
+
+    private static void release(ArrayBlockingQueue<ByteBuffer> pool, ByteBuffer buffer) {
+        buffer.clear();
+        pool.offer(buffer);
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
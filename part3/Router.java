@@ -0,0 +1,216 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps a request's method and path to a handler using a trie of path templates such as
+ * {@code /chirps/{id}}, built once when the server starts.
+ *
+ * Each trie level is one path segment. A literal segment is looked up in a hash map and a
+ * {@code {name}} segment matches any single segment, with literals tried first; so finding a
+ * route costs one step per segment however many routes are registered. Parameter values are
+ * cut out of the path as it is walked, without regular expressions.
+ *
+ * @param <H> The type of handler stored for each route.
+ */
+public final class Router<H> {
+    /**
+     * The outcome of routing a request.
+     */
+    public enum Status {
+        /** A handler is registered for the path and method. */
+        FOUND,
+        /** No route has this path. */
+        NOT_FOUND,
+        /** Routes have this path, but none for this method. */
+        METHOD_NOT_ALLOWED
+    }
+
+    /**
+     * The result of routing one request: the handler and path parameters if a route matched.
+     *
+     * @param <H> The type of handler.
+     */
+    public static final class Match<H> {
+        private final Status status;
+        private final H handler;
+        private final List<String> names;
+        private final String[] values;
+        private final String allowedMethods;
+
+        Match(Status status, H handler, List<String> names, String[] values, String allowedMethods) {
+            this.status = status;
+            this.handler = handler;
+            this.names = names;
+            this.values = values;
+            this.allowedMethods = allowedMethods;
+        }
+
+        /**
+         * Returns whether a route matched.
+         *
+         * @return The routing outcome.
+         */
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * Returns the matched route's handler.
+         *
+         * @return The handler, or {@code null} unless the status is {@link Status#FOUND}.
+         */
+        public H getHandler() {
+            return handler;
+        }
+
+        /**
+         * Returns the value of a path parameter, e.g. {@code "12"} for {@code id} when
+         * {@code /chirps/12} matched {@code /chirps/{id}}.
+         *
+         * @param name The parameter's name in the template.
+         * @return The segment of the path it matched, or {@code null} if there is no such parameter.
+         */
+        public String getParameter(String name) {
+            int index = names == null ? -1 : names.indexOf(name);
+            return index < 0 ? null : values[index];
+        }
+
+        /**
+         * Returns the methods the path does support, for an {@code Allow} header.
+         *
+         * @return The methods separated by commas, or {@code null} unless the status is
+         *         {@link Status#METHOD_NOT_ALLOWED}.
+         */
+        public String getAllowedMethods() {
+            return allowedMethods;
+        }
+    }
+
+    /**
+     * One path segment in the trie.
+     */
+    private static final class Node<H> {
+        final Map<String, Node<H>> literals = new HashMap<>();
+        Node<H> parameter;
+        String parameterName;
+        // the template's parameter names, in order, for the routes that end here
+        List<String> names;
+        final Map<String, H> handlers = new LinkedHashMap<>();
+        String allowedMethods;
+    }
+
+    private final Node<H> root = new Node<>();
+
+    /**
+     * Registers a handler.
+     *
+     * @param method   The HTTP method, e.g. {@code GET}.
+     * @param template The path template: segments separated by {@code /}, each either literal
+     *                 text or a parameter written as {@code {name}}.
+     * @param handler  The handler for matching requests.
+     * @throws IllegalArgumentException If the route is already registered, or the template
+     *                                  names a parameter differently from another route at the
+     *                                  same position.
+     */
+    public void add(String method, String template, H handler) {
+        Node<H> node = root;
+        List<String> names = new ArrayList<>();
+        for (String segment : segments(template)) {
+            if (segment.startsWith("{") && segment.endsWith("}")) {
+                String name = segment.substring(1, segment.length() - 1);
+                if (node.parameter == null) {
+                    node.parameter = new Node<>();
+                    node.parameterName = name;
+                } else if (!node.parameterName.equals(name)) {
+                    throw new IllegalArgumentException("Parameter {" + name + "} in " + template + " conflicts with {" + node.parameterName + "}");
+                }
+                names.add(name);
+                node = node.parameter;
+            } else {
+                node = node.literals.computeIfAbsent(segment, s -> new Node<>());
+            }
+        }
+        if (node.handlers.putIfAbsent(method, handler) != null) {
+            throw new IllegalArgumentException("Route " + method + " " + template + " is already registered");
+        }
+        node.names = names;
+        node.allowedMethods = String.join(", ", node.handlers.keySet());
+    }
+
+    /**
+     * Finds the handler for a request.
+     *
+     * @param method The request method.
+     * @param path   The request path, without the query string.
+     * @return The match, whose status says whether a handler was found.
+     */
+    public Match<H> route(String method, String path) {
+        if (!path.startsWith("/")) {
+            return new Match<>(Status.NOT_FOUND, null, null, null, null);
+        }
+        String[] values = new String[depth(path)];
+        Node<H> node = find(root, path, 1, values, 0);
+        if (node == null || node.handlers.isEmpty()) {
+            return new Match<>(Status.NOT_FOUND, null, null, null, null);
+        }
+        H handler = node.handlers.get(method);
+        if (handler == null) {
+            return new Match<>(Status.METHOD_NOT_ALLOWED, null, null, null, node.allowedMethods);
+        }
+        return new Match<>(Status.FOUND, handler, node.names, values, null);
+    }
+
+    /**
+     * Walks the trie from {@code node} for the path from {@code start} onwards, trying the
+     * literal child before the parameter child, and records parameter values as it goes.
+     */
+    private Node<H> find(Node<H> node, String path, int start, String[] values, int parameters) {
+        if (start > path.length()) {
+            return node;
+        }
+        int end = path.indexOf('/', start);
+        if (end < 0) {
+            end = path.length();
+        }
+        String segment = path.substring(start, end);
+        Node<H> literal = node.literals.get(segment);
+        if (literal != null) {
+            Node<H> found = find(literal, path, end + 1, values, parameters);
+            if (found != null && !found.handlers.isEmpty()) {
+                return found;
+            }
+        }
+        if (node.parameter != null && !segment.isEmpty()) {
+            values[parameters] = segment;
+            return find(node.parameter, path, end + 1, values, parameters + 1);
+        }
+        return null;
+    }
+
+    private static int depth(String path) {
+        int slashes = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                slashes++;
+            }
+        }
+        return slashes;
+    }
+
+    private static List<String> segments(String template) {
+        List<String> segments = new ArrayList<>();
+        int start = 1;
+        while (start <= template.length()) {
+            int end = template.indexOf('/', start);
+            if (end < 0) {
+                end = template.length();
+            }
+            segments.add(template.substring(start, end));
+            start = end + 1;
+        }
+        return segments;
+    }
+}
@@ -1,27 +1,97 @@
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
+import java.io.IOException;
 import java.io.StringReader;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Locale;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Manages a collection of {@code Chirp} objects, allowing for storage, retrieval,
  * addition, updating, and deletion of chirps.
  */
 public class Store {
-    private Map<Integer, Chirp> chirpStore = new HashMap<>();
+    private final ChirpBackend chirpStore;
+    private final ConcurrentHashMap<String, NavigableSet<ChirpKey>> chirpsByUser = new ConcurrentHashMap<>();
+    private final InvertedIndex contentIndex = new InvertedIndex();
+    private final ConcurrentSkipListSet<ChirpKey> chirpsByTime = new ConcurrentSkipListSet<>();
+    private final TrendingCounter trendingTags = new TrendingCounter();
+    private final TrendingCounter trendingMentions = new TrendingCounter();
+    private final ChangeLog changeLog = new ChangeLog(CHANGE_LOG_SIZE);
+    private final List<Consumer<ChangeLog.Change>> changeListeners = new CopyOnWriteArrayList<>();
+    private static final int CHANGE_LOG_SIZE = 10000;
+    /** Passed to {@link #updateChirp(int, Chirp, long)} to update whatever version is current. */
+    public static final long ANY_VERSION = -1;
+    private static final Pattern TAG_OR_MENTION = Pattern.compile("(?<![\\p{L}\\p{N}_])([#@])([\\p{L}\\p{N}_]+)");
+    private int nextChirpId = 0;
+
+    /**
+     * Constructs a store that keeps its chirps on the heap.
+     */
+    public Store() {
+        this(new HeapChirpBackend());
+    }
+
+    /**
+     * Constructs a store on top of the given backend.
+     *
+     * @param backend The {@code ChirpBackend} that holds the chirps.
+     */
+    public Store(ChirpBackend backend) {
+        this.chirpStore = backend;
+    }
+
+    /**
+     * Creates a store using the backend named in the configuration.
+     *
+     * @param config The server configuration. Its {@code storeBackend} is {@code "heap"} for the
+     *               default in-memory store, {@code "offheap"} to keep chirp payloads in direct
+     *               buffers, or {@code "tiered"} to spill older chirps to disk segments.
+     * @return A new, empty {@code Store}.
+     * @throws IOException If the tiered store cannot create its segment directory.
+     */
+    public static Store create(Configuration config) throws IOException {
+        if ("offheap".equalsIgnoreCase(config.storeBackend_)) {
+            return new Store(new OffHeapChirpBackend());
+        }
+        if ("tiered".equalsIgnoreCase(config.storeBackend_)) {
+            return new Store(new TieredChirpBackend(config.hotChirps_, config.coldAfterSeconds_ * 1000L, config.segmentDirectory_));
+        }
+        return new Store();
+    }
 
     /**
      * Adds a new {@code Chirp} to the store.
      *
      * @param chirp The {@code Chirp} object to be added.
      */
-    public void addChirp(Chirp chirp) {
-        chirpStore.put(chirp.getId(), chirp);
+    public synchronized void addChirp(Chirp chirp) {
+        putChirp(chirp);
+    }
+
+    /**
+     * Adds a batch of chirps to the store in a single operation, holding the store's lock once
+     * for the whole batch rather than once per chirp.
+     *
+     * @param chirps The {@code Chirp} objects to be added.
+     */
+    public synchronized void addChirps(Collection<Chirp> chirps) {
+        for (Chirp chirp : chirps) {
+            putChirp(chirp);
+        }
     }
 
     /**
@@ -32,7 +102,7 @@ public class Store {
      * @param content  The content of the chirp.
      */
     public void addChirp(String username, String content) {
-        int nextId = findNextChirpId();
+        int nextId = allocateChirpIds(1);
         LocalDateTime postedAt = LocalDateTime.now();
         Chirp newChirp = new Chirp(nextId, username, content, postedAt);
         addChirp(newChirp);
@@ -40,13 +110,24 @@ public class Store {
 
 
     /**
-     * Finds the next available chirp ID by identifying the highest ID currently in use and adding one.
+     * Finds the next available chirp ID, one past the highest ID the store has handed out or seen.
      *
      * @return The next available chirp ID.
      */
-    public int findNextChirpId() {
-        int highestId = chirpStore.keySet().stream().max(Integer::compareTo).orElse(-1);
-        return highestId + 1;
+    public synchronized int findNextChirpId() {
+        return nextChirpId;
+    }
+
+    /**
+     * Reserves a contiguous block of chirp IDs so that concurrent posters never receive the same ID.
+     *
+     * @param count The number of IDs to reserve.
+     * @return The first ID of the block; the block runs up to {@code first + count - 1}.
+     */
+    public synchronized int allocateChirpIds(int count) {
+        int first = nextChirpId;
+        nextChirpId += count;
+        return first;
     }
 
     /**
@@ -66,11 +147,46 @@ public class Store {
      * @param chirp The {@code Chirp} object with updated data.
      */
     public void updateChirp(int id, Chirp chirp) {
-        if (chirpStore.containsKey(id)) {
-            chirpStore.put(id, chirp);
-        } else {
+        updateChirp(id, chirp, ANY_VERSION);
+    }
+
+    /**
+     * Replaces a chirp only if it is still at the version the caller last saw, so two clients
+     * editing the same chirp cannot silently overwrite each other.
+     *
+     * A stale version is rejected by reading the chirp without taking the store's lock, so losing
+     * writers never wait. An update that looks current takes the store's monitor, where the
+     * version is compared again and the chirp replaced, so winning writers are serialised even
+     * when they edit different chirps: the replacement also rewrites the shared indexes and
+     * appends to the change log, which have to move together with the chirp.
+     *
+     * @param id              The ID of the chirp to update.
+     * @param chirp           The {@code Chirp} object with updated data.
+     * @param expectedVersion The version the chirp must be at, or {@link #ANY_VERSION}.
+     * @return The chirp as stored, carrying its new version, or {@code null} if the chirp is no
+     *         longer at {@code expectedVersion}.
+     * @throws IllegalArgumentException If no chirp exists with that ID, or {@code chirp} has a different ID.
+     */
+    public Chirp updateChirp(int id, Chirp chirp, long expectedVersion) {
+        if (chirp.getId() != id) {
+            throw new IllegalArgumentException("Chirp " + chirp.getId() + " cannot replace chirp " + id);
+        }
+        if (!isAtVersion(chirpStore.get(id), expectedVersion)) {
+            return null;
+        }
+        synchronized (this) {
+            if (!isAtVersion(chirpStore.get(id), expectedVersion)) {
+                return null;
+            }
+            return putChirp(chirp);
+        }
+    }
+
+    private static boolean isAtVersion(Chirp current, long expectedVersion) {
+        if (current == null) {
             throw new IllegalArgumentException("Attempt to update no existent chirp.");
         }
+        return expectedVersion == ANY_VERSION || current.getVersion() == expectedVersion;
     }
 
     /**
@@ -79,18 +195,240 @@ public class Store {
      * @param id The ID of the chirp to delete.
      * @return The deleted {@code Chirp} object, or {@code null} if no chirp exists with that ID.
      */
-    public Chirp deleteChirp(int id) {
-        return chirpStore.remove(id);
+    public synchronized Chirp deleteChirp(int id) {
+        return removeChirp(id);
+    }
+
+    /**
+     * Applies a list of updates and deletes in order while holding the store's lock once, so
+     * code that synchronizes on the store sees either none of them or all of them. Each
+     * mutation succeeds or fails on its own: one that names a missing chirp, or expects a
+     * version the chirp is no longer at, is skipped and the rest still apply.
+     *
+     * @param mutations The mutations, in the order to apply them.
+     * @return One outcome per mutation, in the same order.
+     */
+    public synchronized List<ChirpMutation.Outcome> applyMutations(List<ChirpMutation> mutations) {
+        List<ChirpMutation.Outcome> outcomes = new ArrayList<>(mutations.size());
+        for (ChirpMutation mutation : mutations) {
+            Chirp current = chirpStore.get(mutation.getId());
+            if (current == null) {
+                outcomes.add(new ChirpMutation.Outcome(ChirpMutation.Status.NOT_FOUND, null));
+            } else if (mutation.getExpectedVersion() != ANY_VERSION && current.getVersion() != mutation.getExpectedVersion()) {
+                outcomes.add(new ChirpMutation.Outcome(ChirpMutation.Status.CONFLICT, current));
+            } else if (mutation.isDelete()) {
+                outcomes.add(new ChirpMutation.Outcome(ChirpMutation.Status.APPLIED, removeChirp(mutation.getId())));
+            } else {
+                outcomes.add(new ChirpMutation.Outcome(ChirpMutation.Status.APPLIED, putChirp(mutation.getChirp())));
+            }
+        }
+        return outcomes;
+    }
+
+    /**
+     * Returns the store's current version. Every add, update and delete increases it by one.
+     *
+     * @return The version of the latest change.
+     */
+    public long getVersion() {
+        return changeLog.getLatestVersion();
+    }
+
+    /**
+     * Registers a listener that is told about every change, in version order, as it happens.
+     * Listeners are called while the store's monitor is held, so they must not block, and code
+     * that synchronizes on the store is guaranteed not to miss a change between two calls.
+     *
+     * @param listener The listener to add.
+     */
+    public void addChangeListener(Consumer<ChangeLog.Change> listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * Returns the changes made since a version, so a client holding that version can catch up
+     * without fetching every chirp again.
+     *
+     * @param version The version the client already has.
+     * @return The changes in order, or {@code null} if the version is too old to be caught up
+     *         from the change log and the client must fetch everything again.
+     */
+    public List<ChangeLog.Change> getChangesSince(long version) {
+        return changeLog.since(version);
+    }
+
+    /**
+     * Retrieves the chirps posted by one user, oldest first, using the per-user index rather than
+     * scanning the store.
+     *
+     * @param username The username to look up.
+     * @return The user's chirps in posting order; empty if the user has none.
+     */
+    public List<Chirp> getChirpsByUser(String username) {
+        NavigableSet<ChirpKey> keys = chirpsByUser.get(username);
+        List<Chirp> chirps = new ArrayList<>();
+        if (keys != null) {
+            for (ChirpKey key : keys) {
+                Chirp chirp = chirpStore.get(key.getId());
+                if (chirp != null) {
+                    chirps.add(chirp);
+                }
+            }
+        }
+        return chirps;
+    }
+
+    /**
+     * Retrieves chirps posted within a time range, oldest first, from the time index. Results can
+     * be paged by passing the key of the last chirp of the previous page as {@code after}.
+     *
+     * @param since The earliest posting time to include, in epoch milliseconds.
+     * @param until The posting time to stop before, in epoch milliseconds.
+     * @param after The key to continue after, or {@code null} to start at {@code since}.
+     * @param limit The maximum number of chirps to return.
+     * @return Up to {@code limit} chirps in posting order.
+     */
+    public List<Chirp> getChirpsBetween(long since, long until, ChirpKey after, int limit) {
+        ChirpKey from = new ChirpKey(since, Integer.MIN_VALUE);
+        boolean inclusive = true;
+        if (after != null && after.compareTo(from) >= 0) {
+            from = after;
+            inclusive = false;
+        }
+        List<Chirp> chirps = new ArrayList<>();
+        if (from.compareTo(new ChirpKey(until, Integer.MIN_VALUE)) >= 0) {
+            return chirps;
+        }
+        for (ChirpKey key : chirpsByTime.subSet(from, inclusive, new ChirpKey(until, Integer.MIN_VALUE), false)) {
+            if (chirps.size() == limit) {
+                break;
+            }
+            Chirp chirp = chirpStore.get(key.getId());
+            if (chirp != null) {
+                chirps.add(chirp);
+            }
+        }
+        return chirps;
+    }
+
+    /**
+     * Searches chirp content through the inverted index. See {@link InvertedIndex#search(String)}
+     * for the query syntax.
+     *
+     * @param query The search query.
+     * @param limit The maximum number of chirps to return.
+     * @return Up to {@code limit} matching chirps, most recently posted first.
+     */
+    public List<Chirp> searchChirps(String query, int limit) {
+        // ranked by the index's posting times, so only the page returned is loaded
+        int[] ids = contentIndex.searchNewest(query, limit);
+        List<Chirp> chirps = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            Chirp chirp = chirpStore.get(id);
+            if (chirp != null) {
+                chirps.add(chirp);
+            }
+        }
+        return chirps;
+    }
+
+    /**
+     * Returns the most used hashtags or mentions among chirps posted in a recent window.
+     *
+     * @param mentions {@code true} for {@code @mentions}, {@code false} for {@code #tags}.
+     * @param window   The window to count over.
+     * @param n        The number of terms to return.
+     * @return Up to {@code n} terms with their estimated counts, highest first.
+     */
+    public List<TrendingCounter.Count> getTrending(boolean mentions, TrendingCounter.Window window, int n) {
+        TrendingCounter counter = mentions ? trendingMentions : trendingTags;
+        return counter.top(window, n, LocalDateTime.now().toInstant(ZoneOffset.UTC).toEpochMilli());
+    }
+
+    /**
+     * Stores a chirp, one version past any chirp it replaces, and brings the indexes up to date.
+     * Callers must hold the store's lock.
+     *
+     * @return The chirp as stored.
+     */
+    private Chirp putChirp(Chirp chirp) {
+        Chirp previous = chirpStore.get(chirp.getId());
+        chirp = chirp.withVersion(previous == null ? 1 : previous.getVersion() + 1);
+        chirpStore.put(chirp);
+        if (previous != null) {
+            unindex(previous);
+            publish(changeLog.record(ChangeLog.Operation.UPDATE, chirp.getId(), chirp));
+        } else {
+            countTagsAndMentions(chirp);
+            publish(changeLog.record(ChangeLog.Operation.ADD, chirp.getId(), chirp));
+        }
+        index(chirp);
+        nextChirpId = Math.max(nextChirpId, chirp.getId() + 1);
+        return chirp;
+    }
+
+    /**
+     * Removes a chirp and its index entries. Callers must hold the store's lock.
+     *
+     * @return The removed chirp, or {@code null} if there was none.
+     */
+    private Chirp removeChirp(int id) {
+        Chirp removed = chirpStore.remove(id);
+        if (removed != null) {
+            unindex(removed);
+            publish(changeLog.record(ChangeLog.Operation.DELETE, id, null));
+        }
+        return removed;
+    }
+
+    private void publish(ChangeLog.Change change) {
+        for (Consumer<ChangeLog.Change> listener : changeListeners) {
+            listener.accept(change);
+        }
+    }
+
+    private void countTagsAndMentions(Chirp chirp) {
+        long now = LocalDateTime.now().toInstant(ZoneOffset.UTC).toEpochMilli();
+        Matcher matcher = TAG_OR_MENTION.matcher(chirp.getContentChars());
+        Set<String> seen = new HashSet<>();
+        while (matcher.find()) {
+            // a tag repeated within one chirp still counts once
+            String term = matcher.group().toLowerCase(Locale.ROOT);
+            if (seen.add(term)) {
+                TrendingCounter counter = matcher.group(1).equals("@") ? trendingMentions : trendingTags;
+                counter.record(term, chirp.getPostedAtMillis(), now);
+            }
+        }
+    }
+
+    private void index(Chirp chirp) {
+        chirpsByUser.computeIfAbsent(chirp.getUsername(), username -> new ConcurrentSkipListSet<>()).add(ChirpKey.of(chirp));
+        contentIndex.add(chirp);
+        chirpsByTime.add(ChirpKey.of(chirp));
+    }
+
+    private void unindex(Chirp chirp) {
+        NavigableSet<ChirpKey> keys = chirpsByUser.get(chirp.getUsername());
+        if (keys != null) {
+            keys.remove(ChirpKey.of(chirp));
+            if (keys.isEmpty()) {
+                chirpsByUser.remove(chirp.getUsername());
+            }
+        }
+        contentIndex.remove(chirp);
+        chirpsByTime.remove(ChirpKey.of(chirp));
     }
 
 
     /**
-     * Retrieves all chirps currently in the store.
+     * Retrieves all chirps currently in the store. The result is a read-only snapshot: writes
+     * made after this call are not reflected in it, and with the heap backend it is returned
+     * without copying or locking.
      *
-     * @return A list of all {@code Chirp} objects in the store.
+     * @return A collection of all {@code Chirp} objects in the store.
      */
-    public List<Chirp> getAllChirps() {
-        return new ArrayList<>(chirpStore.values());
+    public Collection<Chirp> getAllChirps() {
+        return chirpStore.values();
     }
 
     /**
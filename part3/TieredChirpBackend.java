@@ -0,0 +1,283 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A {@code ChirpBackend} that keeps recent chirps in memory and spills the rest to disk.
+ *
+ * Chirps stay in the hot tier until it holds more than the configured number of chirps, or
+ * until they are older than the configured age, oldest posting time first. They are then appended to the current segment
+ * file (as length-prefixed {@code ChirpRecord}s) and only their position is kept in memory.
+ * Reading a cold chirp goes through a small LRU cache of fixed-size segment pages.
+ */
+public class TieredChirpBackend implements ChirpBackend {
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final int PAGE_BYTES = 64 * 1024;
+    private static final int CACHED_PAGES = 256;
+    private static final int OFFSET_BITS = 40;
+
+    private final int hotLimit;
+    private final long coldAfterMillis;
+    private final Path directory;
+
+    private final Map<Integer, Chirp> hot = new HashMap<>();
+    private final TreeSet<ChirpKey> hotByAge = new TreeSet<>();
+    private final IntLongMap cold = new IntLongMap();
+    private final List<Segment> segments = new ArrayList<>();
+    private final Map<Long, ByteBuffer> pageCache = new LinkedHashMap<Long, ByteBuffer>(CACHED_PAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, ByteBuffer> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+
+    /**
+     * A segment file together with the number of chirps in it that are still live. A segment
+     * whose chirps have all gone is closed and deleted, but keeps its place in the list because
+     * cold locations refer to segments by index.
+     */
+    private static class Segment {
+        final Path path;
+        final FileChannel channel;
+        long size;
+        int live;
+
+        Segment(Path path) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // the store is rebuilt from chirps.json on every start, so segments never outlive the server
+            path.toFile().deleteOnExit();
+        }
+    }
+
+    /**
+     * Constructs a tiered backend.
+     *
+     * @param hotLimit        The maximum number of chirps kept in memory.
+     * @param coldAfterMillis The age after which a chirp is moved to disk.
+     * @param directory       The directory for segment files, or {@code null} for a temporary directory.
+     * @throws IOException If the segment directory cannot be created.
+     */
+    public TieredChirpBackend(int hotLimit, long coldAfterMillis, String directory) throws IOException {
+        this.hotLimit = hotLimit;
+        this.coldAfterMillis = coldAfterMillis;
+        if (directory == null) {
+            this.directory = Files.createTempDirectory("chirply-segments");
+            this.directory.toFile().deleteOnExit();
+        } else {
+            this.directory = Files.createDirectories(new File(directory).toPath());
+        }
+    }
+
+    @Override
+    public synchronized Chirp get(int id) {
+        Chirp chirp = hot.get(id);
+        if (chirp == null) {
+            long location = cold.get(id, -1L);
+            if (location >= 0) {
+                chirp = readCold(location);
+            }
+        }
+        return chirp;
+    }
+
+    @Override
+    public synchronized void put(Chirp chirp) {
+        dropCold(chirp.getId());
+        Chirp previous = hot.put(chirp.getId(), chirp);
+        if (previous != null) {
+            // an edited chirp keeps its ID but may have a new posting time
+            hotByAge.remove(ChirpKey.of(previous));
+        }
+        hotByAge.add(ChirpKey.of(chirp));
+        evict();
+    }
+
+    @Override
+    public synchronized Chirp remove(int id) {
+        Chirp removed = hot.remove(id);
+        if (removed != null) {
+            hotByAge.remove(ChirpKey.of(removed));
+        } else {
+            long location = cold.get(id, -1L);
+            if (location >= 0) {
+                removed = readCold(location);
+                dropCold(id);
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized boolean contains(int id) {
+        return hot.containsKey(id) || cold.containsKey(id);
+    }
+
+    @Override
+    public synchronized int size() {
+        return hot.size() + cold.size();
+    }
+
+    /**
+     * Returns a snapshot of the stored chirps, hot ones oldest first and then the cold ones read
+     * back from disk, taken while the backend is locked so its size matches its contents.
+     */
+    @Override
+    public synchronized Collection<Chirp> values() {
+        List<Chirp> chirps = new ArrayList<>(size());
+        for (ChirpKey key : hotByAge) {
+            chirps.add(hot.get(key.getId()));
+        }
+        for (int id : cold.keys()) {
+            chirps.add(readCold(cold.get(id, -1L)));
+        }
+        return chirps;
+    }
+
+    /**
+     * Moves chirps from the hot tier to disk while it is over budget or its oldest chirp is
+     * past the age threshold. Chirps are taken by posting time rather than by when they were put,
+     * since chirps are loaded from chirps.json in file order and edits change a chirp's time.
+     */
+    private void evict() {
+        // posting times are wall-clock LocalDateTimes stored as if UTC, so compare the same way
+        long cutoff = LocalDateTime.now().toInstant(ZoneOffset.UTC).toEpochMilli() - coldAfterMillis;
+        Iterator<ChirpKey> eldest = hotByAge.iterator();
+        while (eldest.hasNext()) {
+            ChirpKey key = eldest.next();
+            if (hot.size() <= hotLimit && key.getPostedAt() >= cutoff) {
+                break;
+            }
+            cold.put(key.getId(), writeCold(hot.remove(key.getId())));
+            eldest.remove();
+        }
+    }
+
+    private long writeCold(Chirp chirp) {
+        try {
+            Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            int length = ChirpRecord.length(chirp);
+            if (segment == null || segment.size + 4 + length > SEGMENT_BYTES) {
+                if (segment != null && segment.live == 0) {
+                    reclaim(segment);
+                }
+                segment = new Segment(directory.resolve("segment-" + segments.size() + ".dat"));
+                segments.add(segment);
+            }
+            ByteBuffer record = ByteBuffer.allocate(4 + length);
+            record.putInt(length);
+            ChirpRecord.write(record, chirp);
+            record.flip();
+
+            long offset = segment.size;
+            while (record.hasRemaining()) {
+                segment.channel.write(record, segment.size + record.position());
+            }
+            segment.size += 4 + length;
+            segment.live++;
+
+            // pages overlapping the appended range may have been cached while partly written
+            int segmentIndex = segments.size() - 1;
+            for (long page = offset / PAGE_BYTES; page <= (segment.size - 1) / PAGE_BYTES; page++) {
+                pageCache.remove(pageKey(segmentIndex, page));
+            }
+            return ((long) segmentIndex << OFFSET_BITS) | offset;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Chirp readCold(long location) {
+        int segmentIndex = (int) (location >>> OFFSET_BITS);
+        long offset = location & ((1L << OFFSET_BITS) - 1);
+        ByteBuffer length = read(segmentIndex, offset, 4);
+        ByteBuffer record = read(segmentIndex, offset + 4, length.getInt(0));
+        return ChirpRecord.read(record, 0);
+    }
+
+    private void dropCold(int id) {
+        long location = cold.get(id, -1L);
+        if (location < 0) {
+            return;
+        }
+        cold.remove(id);
+        int segmentIndex = (int) (location >>> OFFSET_BITS);
+        Segment segment = segments.get(segmentIndex);
+        segment.live--;
+        if (segment.live == 0 && segmentIndex != segments.size() - 1) {
+            // every chirp in this segment has been deleted or rewritten, so reclaim the file
+            reclaim(segment);
+        }
+    }
+
+    /**
+     * Closes and deletes a segment that no cold chirp refers to any more.
+     */
+    private void reclaim(Segment segment) {
+        try {
+            segment.channel.close();
+            segment.size = 0;
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Reads a range of a segment through the page cache.
+     */
+    private ByteBuffer read(int segmentIndex, long offset, int length) {
+        ByteBuffer result = ByteBuffer.allocate(length);
+        while (result.hasRemaining()) {
+            long position = offset + result.position();
+            ByteBuffer page = page(segmentIndex, position / PAGE_BYTES);
+            int start = (int) (position % PAGE_BYTES);
+            int count = Math.min(result.remaining(), page.limit() - start);
+            result.put(result.position(), page, start, count);
+            result.position(result.position() + count);
+        }
+        return result;
+    }
+
+    private ByteBuffer page(int segmentIndex, long pageNumber) {
+        Long key = pageKey(segmentIndex, pageNumber);
+        ByteBuffer page = pageCache.get(key);
+        if (page == null) {
+            try {
+                Segment segment = segments.get(segmentIndex);
+                long start = pageNumber * PAGE_BYTES;
+                page = ByteBuffer.allocate((int) Math.min(PAGE_BYTES, segment.size - start));
+                while (page.hasRemaining()) {
+                    if (segment.channel.read(page, start + page.position()) < 0) {
+                        throw new IOException("Unexpected end of segment " + segment.path);
+                    }
+                }
+                page.flip();
+                pageCache.put(key, page);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return page;
+    }
+
+    private static Long pageKey(int segmentIndex, long pageNumber) {
+        return ((long) segmentIndex << OFFSET_BITS) | pageNumber;
+    }
+}
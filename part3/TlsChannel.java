@@ -0,0 +1,409 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * An HTTPS connection: a socket channel whose traffic is encrypted and decrypted by an
+ * {@link SSLEngine}, so that the rest of the server can read requests from it and write
+ * responses to it (including gathering writes and file transfers) exactly as it does with a
+ * plain socket channel.
+ *
+ * In blocking mode, used by {@link ClientHandler}, the handshake and every read and write
+ * complete before returning. In non-blocking mode, used once {@link ChirpBroadcaster} takes over
+ * an event stream, {@link #write(ByteBuffer[], int, int)} encrypts what it is given and keeps
+ * whatever the socket does not accept yet for {@link #flush()}.
+ *
+ * Sessions are cached by the {@link SSLContext}, and the server hands out session tickets, so a
+ * returning client resumes its session instead of doing a full handshake.
+ */
+public final class TlsChannel implements ByteChannel, GatheringByteChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel socket;
+    private final SSLEngine engine;
+    // encrypted bytes read from the socket and not yet decrypted (ready for writing into)
+    private ByteBuffer netIn;
+    // encrypted bytes not yet written to the socket (ready for reading from)
+    private final ByteBuffer netOut;
+    // decrypted bytes not yet read by the caller (ready for reading from)
+    private ByteBuffer appIn;
+    private boolean inboundDone;
+    private volatile boolean established;
+
+    /**
+     * Wraps an accepted connection. The handshake happens on the first call to
+     * {@link #handshake(int)}, so it does not hold up the thread that accepted the connection.
+     *
+     * @param socket  The accepted connection.
+     * @param context The server's TLS context, from {@link #createServerContext(Configuration)}.
+     */
+    public TlsChannel(SocketChannel socket, SSLContext context) {
+        this.socket = socket;
+        this.engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setApplicationProtocols(new String[] {"http/1.1"});
+        engine.setSSLParameters(parameters);
+
+        int packetSize = engine.getSession().getPacketBufferSize();
+        this.netIn = ByteBuffer.allocate(packetSize);
+        this.netOut = ByteBuffer.allocateDirect(packetSize);
+        this.netOut.flip();
+        this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        this.appIn.flip();
+    }
+
+    /**
+     * Creates the server's TLS context from the keystore named in the configuration.
+     *
+     * @param config The configuration holding the keystore's path, type and password, and how
+     *               many sessions to keep for resumption and for how long.
+     * @return The context.
+     * @throws IOException              If the keystore cannot be read.
+     * @throws GeneralSecurityException If the keystore or its key cannot be used.
+     */
+    public static SSLContext createServerContext(Configuration config) throws IOException, GeneralSecurityException {
+        // stateless session tickets let clients resume without the server remembering them;
+        // this must be set before the first TLS context is created
+        if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension", String.valueOf(config.tlsSessionTickets_));
+        }
+
+        char[] password = config.keystorePassword_ == null ? null : config.keystorePassword_.toCharArray();
+        KeyStore keyStore = KeyStore.getInstance(config.keystoreType_);
+        try (InputStream in = Files.newInputStream(Paths.get(config.keystore_))) {
+            keyStore.load(in, password);
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, password);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(config.tlsSessionCacheSize_);
+        sessions.setSessionTimeout(config.tlsSessionTimeoutSeconds_);
+        return context;
+    }
+
+    /**
+     * Returns the underlying connection.
+     *
+     * @return The socket channel.
+     */
+    public SocketChannel getSocketChannel() {
+        return socket;
+    }
+
+    /**
+     * Runs the TLS handshake. The channel must be in blocking mode.
+     *
+     * The timeout covers the whole handshake rather than each read, so a client that trickles
+     * its handshake messages a byte at a time cannot keep the connection past it.
+     *
+     * @param timeoutMillis The longest the handshake may take, or 0 for no limit.
+     * @throws SocketTimeoutException If the handshake is not done within the timeout.
+     * @throws IOException            If the handshake fails or the client disconnects.
+     */
+    public void handshake(int timeoutMillis) throws IOException {
+        long startedAt = System.nanoTime();
+        engine.beginHandshake();
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        while (status != SSLEngineResult.HandshakeStatus.FINISHED && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            switch (status) {
+                case NEED_WRAP:
+                    status = wrap(new ByteBuffer[] {EMPTY}, 0, 1).getHandshakeStatus();
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    // send this side's flight before waiting for the client's
+                    flushFully();
+                    SSLEngineResult result = unwrap();
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        if (timeoutMillis > 0) {
+                            long remaining = timeoutMillis - (System.nanoTime() - startedAt) / 1_000_000;
+                            if (remaining <= 0) {
+                                throw new SocketTimeoutException("TLS handshake not completed in time");
+                            }
+                            socket.socket().setSoTimeout((int) remaining);
+                        }
+                        if (fill() < 0) {
+                            throw new EOFException("Client disconnected during the TLS handshake");
+                        }
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("Client closed the connection during the TLS handshake");
+                    }
+                    status = result.getHandshakeStatus();
+                    break;
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    status = engine.getHandshakeStatus();
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected handshake status " + status);
+            }
+        }
+        flushFully();
+        established = true;
+    }
+
+    /**
+     * Checks whether the handshake has completed, so that responses can be sent encrypted.
+     *
+     * @return {@code true} once {@link #handshake(int)} has returned.
+     */
+    public boolean isEstablished() {
+        return established;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        while (!appIn.hasRemaining()) {
+            if (inboundDone) {
+                return -1;
+            }
+            SSLEngineResult result = unwrap();
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    int n = fill();
+                    if (n < 0) {
+                        inboundDone = true;
+                        try {
+                            engine.closeInbound();
+                        } catch (SSLException e) {
+                            // the client closed without close_notify, which browsers often do
+                        }
+                        return -1;
+                    }
+                    if (n == 0) {
+                        return 0;
+                    }
+                    break;
+                case CLOSED:
+                    inboundDone = true;
+                    break;
+                default:
+                    break;
+            }
+            // after the handshake, the client can still send messages (e.g. a key update) that
+            // need an answer
+            finishPostHandshake(result.getHandshakeStatus());
+        }
+        int count = Math.min(appIn.remaining(), dst.remaining());
+        ByteBuffer slice = appIn.slice();
+        slice.limit(count);
+        dst.put(slice);
+        appIn.position(appIn.position() + count);
+        return count;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] {src}, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Encrypts and writes bytes from the buffers. In non-blocking mode this may consume bytes
+     * whose encrypted form is still waiting to be sent; {@link #flush()} sends the rest.
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long consumed = 0;
+        while (remaining(srcs, offset, length) > 0) {
+            if (!flush()) {
+                break;
+            }
+            SSLEngineResult result = wrap(srcs, offset, length);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new ClosedChannelException();
+            }
+            consumed += result.bytesConsumed();
+        }
+        if (socket.isBlocking()) {
+            flushFully();
+        } else {
+            flush();
+        }
+        return consumed;
+    }
+
+    /**
+     * Writes as much already-encrypted output as the socket accepts.
+     *
+     * @return {@code true} if nothing is left waiting to be written.
+     * @throws IOException If the write fails.
+     */
+    public boolean flush() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (socket.write(netOut) == 0 && !socket.isBlocking()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether bytes from the client are held here, decrypted or not, so that a read
+     * may not need to wait for the socket.
+     *
+     * @return {@code true} if input is buffered.
+     */
+    public boolean hasBufferedInput() {
+        return appIn.hasRemaining() || netIn.position() > 0;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return socket.isOpen();
+    }
+
+    /**
+     * Tells the client the connection is closing and closes the socket.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            engine.closeOutbound();
+            if (socket.isBlocking() && socket.isOpen()) {
+                flushFully();
+                wrap(new ByteBuffer[] {EMPTY}, 0, 1);
+                flushFully();
+            }
+        } catch (IOException e) {
+            // the client has gone already; there is no one to tell
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Encrypts into {@code netOut} after whatever is already waiting there, so that the several
+     * messages of one handshake flight leave together rather than as separate small packets.
+     */
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        while (true) {
+            netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(srcs, offset, length, netOut);
+            } finally {
+                netOut.flip();
+            }
+            if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                return result;
+            }
+            if (!netOut.hasRemaining()) {
+                throw new SSLException("TLS record larger than the session's packet size");
+            }
+            flushFully();
+        }
+    }
+
+    private SSLEngineResult unwrap() throws IOException {
+        netIn.flip();
+        appIn.compact();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            appIn.flip();
+            netIn.compact();
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            appIn = grow(appIn, engine.getSession().getApplicationBufferSize(), true);
+        } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && !netIn.hasRemaining()) {
+            netIn = grow(netIn, engine.getSession().getPacketBufferSize(), false);
+        }
+        return result;
+    }
+
+    /**
+     * Reads more encrypted bytes from the socket. In blocking mode this reads through the
+     * socket's stream so that its read timeout applies.
+     */
+    private int fill() throws IOException {
+        if (!socket.isBlocking()) {
+            return socket.read(netIn);
+        }
+        int n = socket.socket().getInputStream().read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+        if (n > 0) {
+            netIn.position(netIn.position() + n);
+        }
+        return n;
+    }
+
+    private void flushFully() throws IOException {
+        while (!flush()) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private void finishPostHandshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+        while (true) {
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                status = engine.getHandshakeStatus();
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP && flush()) {
+                status = wrap(new ByteBuffer[] {EMPTY}, 0, 1).getHandshakeStatus();
+                flush();
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static long remaining(ByteBuffer[] srcs, int offset, int length) {
+        long remaining = 0;
+        for (int i = offset; i < offset + length; i++) {
+            remaining += srcs[i].remaining();
+        }
+        return remaining;
+    }
+
+    /**
+     * Returns a copy of the buffer with room for at least {@code size} more bytes.
+     *
+     * @param readMode Whether the buffer holds data for reading (after {@code flip()}) rather
+     *                 than for writing into.
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int size, boolean readMode) {
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() + size);
+        if (!readMode) {
+            buffer.flip();
+        }
+        bigger.put(buffer);
+        if (readMode) {
+            bigger.flip();
+        }
+        return bigger;
+    }
+}
@@ -0,0 +1,271 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Counts how often terms (hashtags or mentions) occur over sliding windows of the last 5 minutes,
+ * hour and day, in bounded memory regardless of how many distinct terms there are.
+ *
+ * Counts are kept in count-min sketches, one per time bucket: a ring of one-minute buckets covers
+ * the 5 minute and hour windows and a ring of one-hour buckets covers the day. Each window also
+ * keeps a fixed-size set of candidate terms with the highest estimates seen, which is what the
+ * top-N queries are answered from. Recording a term costs the same however many terms exist.
+ */
+public class TrendingCounter {
+    /**
+     * The windows that can be queried.
+     */
+    public enum Window {
+        FIVE_MINUTES("5m"), HOUR("1h"), DAY("24h");
+
+        private final String label;
+
+        Window(String label) {
+            this.label = label;
+        }
+
+        /**
+         * Returns the short name used in URLs, e.g. {@code 1h}.
+         *
+         * @return The window's label.
+         */
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * Finds a window by its label.
+         *
+         * @param label The label, e.g. {@code 5m}.
+         * @return The matching window, or {@code null} if there is none.
+         */
+        public static Window fromLabel(String label) {
+            for (Window window : values()) {
+                if (window.label.equals(label)) {
+                    return window;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A term and its estimated count.
+     */
+    public static final class Count implements Comparable<Count> {
+        private final String term;
+        private final long count;
+
+        Count(String term, long count) {
+            this.term = term;
+            this.count = count;
+        }
+
+        /**
+         * Returns the term.
+         *
+         * @return The term, e.g. {@code #blessed}.
+         */
+        public String getTerm() {
+            return term;
+        }
+
+        /**
+         * Returns the estimated count. Count-min sketches may overestimate but never underestimate.
+         *
+         * @return The estimated number of occurrences in the window.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public int compareTo(Count other) {
+            int byCount = Long.compare(other.count, count);
+            return byCount != 0 ? byCount : term.compareTo(other.term);
+        }
+    }
+
+    private static final long MINUTE = 60_000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1024;
+    private static final int CANDIDATES = 256;
+
+    private final Bucket[] minutes = new Bucket[60];
+    private final Bucket[] hours = new Bucket[24];
+    private final Map<Window, Map<String, Long>> candidates = new HashMap<>();
+    private final Map<Window, TreeSet<Count>> ranked = new HashMap<>();
+
+    /**
+     * A count-min sketch for one time bucket.
+     */
+    private static final class Bucket {
+        final int[][] counts = new int[DEPTH][WIDTH];
+        long start = Long.MIN_VALUE;
+
+        void resetIfStale(long bucketStart) {
+            if (start != bucketStart) {
+                for (int[] row : counts) {
+                    Arrays.fill(row, 0);
+                }
+                start = bucketStart;
+            }
+        }
+    }
+
+    /**
+     * Constructs an empty counter.
+     */
+    public TrendingCounter() {
+        for (int i = 0; i < minutes.length; i++) {
+            minutes[i] = new Bucket();
+        }
+        for (int i = 0; i < hours.length; i++) {
+            hours[i] = new Bucket();
+        }
+        for (Window window : Window.values()) {
+            candidates.put(window, new HashMap<>());
+            ranked.put(window, new TreeSet<>());
+        }
+    }
+
+    /**
+     * Records one occurrence of a term.
+     *
+     * @param term The term, e.g. {@code #blessed}.
+     * @param time When it occurred, in epoch milliseconds.
+     * @param now  The current time, in epoch milliseconds.
+     */
+    public synchronized void record(String term, long time, long now) {
+        if (time > now || time <= now - 24 * HOUR) {
+            return;
+        }
+        long minuteStart = time - Math.floorMod(time, MINUTE);
+        long hourStart = time - Math.floorMod(time, HOUR);
+        Bucket minute = minutes[(int) Math.floorMod(minuteStart / MINUTE, (long) minutes.length)];
+        Bucket hour = hours[(int) Math.floorMod(hourStart / HOUR, (long) hours.length)];
+        if (minute.start > minuteStart || hour.start > hourStart) {
+            return; // older than what the ring now holds for that slot
+        }
+        minute.resetIfStale(minuteStart);
+        hour.resetIfStale(hourStart);
+        for (int row = 0; row < DEPTH; row++) {
+            int column = column(term, row);
+            minute.counts[row][column]++;
+            hour.counts[row][column]++;
+        }
+        for (Window window : Window.values()) {
+            offer(window, term, estimate(term, window, now));
+        }
+    }
+
+    /**
+     * Returns the terms with the highest counts in a window.
+     *
+     * @param window The window to look at.
+     * @param n      The number of terms to return.
+     * @param now    The current time, in epoch milliseconds.
+     * @return Up to {@code n} terms, highest count first.
+     */
+    public synchronized List<Count> top(Window window, int n, long now) {
+        // estimates recorded earlier decay as buckets leave the window, so refresh them first
+        Map<String, Long> current = candidates.get(window);
+        TreeSet<Count> order = ranked.get(window);
+        order.clear();
+        for (String term : new ArrayList<>(current.keySet())) {
+            long count = estimate(term, window, now);
+            if (count == 0) {
+                current.remove(term);
+            } else {
+                current.put(term, count);
+                order.add(new Count(term, count));
+            }
+        }
+        List<Count> top = new ArrayList<>(n);
+        for (Count count : order) {
+            if (top.size() == n) {
+                break;
+            }
+            top.add(count);
+        }
+        return top;
+    }
+
+    /**
+     * Keeps a term among the window's candidates if its estimate is high enough.
+     */
+    private void offer(Window window, String term, long count) {
+        Map<String, Long> current = candidates.get(window);
+        TreeSet<Count> order = ranked.get(window);
+        Long previous = current.get(term);
+        if (previous != null) {
+            order.remove(new Count(term, previous));
+        } else if (current.size() >= CANDIDATES) {
+            Count lowest = order.last();
+            if (lowest.getCount() >= count) {
+                return;
+            }
+            order.pollLast();
+            current.remove(lowest.getTerm());
+        }
+        current.put(term, count);
+        order.add(new Count(term, count));
+    }
+
+    private long estimate(String term, Window window, long now) {
+        long minuteNow = now - Math.floorMod(now, MINUTE);
+        long hourNow = now - Math.floorMod(now, HOUR);
+        Bucket[] ring;
+        long step;
+        long newest;
+        int span;
+        switch (window) {
+            case FIVE_MINUTES:
+                ring = minutes;
+                step = MINUTE;
+                newest = minuteNow;
+                span = 5;
+                break;
+            case HOUR:
+                ring = minutes;
+                step = MINUTE;
+                newest = minuteNow;
+                span = 60;
+                break;
+            default:
+                ring = hours;
+                step = HOUR;
+                newest = hourNow;
+                span = 24;
+                break;
+        }
+        long oldest = newest - (span - 1) * step;
+        int[] columns = new int[DEPTH];
+        for (int row = 0; row < DEPTH; row++) {
+            columns[row] = column(term, row);
+        }
+        long minimum = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            long sum = 0;
+            for (Bucket bucket : ring) {
+                if (bucket.start >= oldest && bucket.start <= newest) {
+                    sum += bucket.counts[row][columns[row]];
+                }
+            }
+            minimum = Math.min(minimum, sum);
+        }
+        return minimum;
+    }
+
+    private static int column(String term, int row) {
+        int h = term.hashCode() * (0x9E3779B9 + 2 * row + 1);
+        h ^= h >>> 15;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return (h & 0x7FFFFFFF) % WIDTH;
+    }
+}
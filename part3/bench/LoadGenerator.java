@@ -0,0 +1,288 @@
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The load generator behind the throughput and handshake-rate numbers quoted for the server.
+ * It is kept apart from the server sources and compiled on its own:
+ *
+ * <pre>
+ * javac -d bench/out bench/LoadGenerator.java
+ * java -cp bench/out LoadGenerator &lt;mode&gt; &lt;host&gt; &lt;port&gt; &lt;path&gt; &lt;connections&gt; &lt;in flight&gt; &lt;seconds&gt;
+ * </pre>
+ *
+ * The modes are:
+ * <ul>
+ * <li>{@code h1}: keep-alive HTTP/1.1 connections with one request in flight on each.</li>
+ * <li>{@code h2}: HTTP/2 connections (prior knowledge, no TLS) with several streams in flight
+ *     on each, and flow control windows large enough never to be the limit.</li>
+ * <li>{@code tls}: as {@code h1}, over TLS.</li>
+ * <li>{@code handshake-full}: each connection repeatedly connects, completes a TLS handshake
+ *     without resuming a session, and disconnects.</li>
+ * <li>{@code handshake-resumed}: as {@code handshake-full}, but resuming the session where the
+ *     server allows it.</li>
+ * </ul>
+ *
+ * The in flight count only matters for {@code h2}. Certificates are not checked, since the
+ * server under test normally has a self-signed one. The default rate limits answer most of a
+ * benchmark with 429s, so raise {@code rateLimitReadPerSecond} and its burst first. On a
+ * small machine the Java TLS client itself limits the handshake modes, so cross-check handshake
+ * rates with {@code openssl s_time -connect host:port -new} (or {@code -reuse}).
+ */
+public class LoadGenerator {
+    private static final AtomicLong completed = new AtomicLong();
+    private static final AtomicLong bodyBytes = new AtomicLong();
+    private static final AtomicLong failures = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 7) {
+            System.err.println("Usage: LoadGenerator h1|h2|tls|handshake-full|handshake-resumed host port path connections inflight seconds");
+            System.exit(2);
+        }
+        String mode = args[0];
+        String host = args[1];
+        int port = Integer.parseInt(args[2]);
+        String path = args[3];
+        int connections = Integer.parseInt(args[4]);
+        int inFlight = Integer.parseInt(args[5]);
+        long end = System.nanoTime() + Long.parseLong(args[6]) * 1_000_000_000L;
+        SSLContext tls = mode.equals("h1") || mode.equals("h2") ? null : trustingContext();
+
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    switch (mode) {
+                        case "h1":
+                            http1(new Socket(host, port), host, path, end);
+                            break;
+                        case "tls":
+                            http1(tls.getSocketFactory().createSocket(host, port), host, path, end);
+                            break;
+                        case "h2":
+                            http2(host, port, path, inFlight, end);
+                            break;
+                        case "handshake-full":
+                            handshakes(tls, host, port, false, end);
+                            break;
+                        case "handshake-resumed":
+                            handshakes(tls, host, port, true, end);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown mode " + mode);
+                    }
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    System.err.println(e);
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        String unit = mode.startsWith("handshake") ? "handshakes/s" : "req/s";
+        System.out.printf(Locale.ROOT, "%s connections=%d inflight=%d %.0f %s %.1f MB/s failures=%d%n",
+                mode, connections, inFlight, completed.get() / seconds, unit, bodyBytes.get() / seconds / 1e6, failures.get());
+    }
+
+    /**
+     * Sends requests one after another on a keep-alive connection until the end time.
+     */
+    private static void http1(Socket socket, String host, String path, long end) throws IOException {
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            OutputStream out = s.getOutputStream();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 65536));
+            byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            byte[] body = new byte[1 << 16];
+            while (System.nanoTime() < end) {
+                out.write(request);
+                out.flush();
+                String status = readLine(in);
+                if (!status.startsWith("HTTP/1.1 200") && !status.startsWith("HTTP/1.1 304")) {
+                    throw new IOException("Unexpected response: " + status);
+                }
+                long length = 0;
+                String line;
+                while (!(line = readLine(in)).isEmpty()) {
+                    if (line.toLowerCase(Locale.ROOT).startsWith("content-length:")) {
+                        length = Long.parseLong(line.substring(15).trim());
+                    }
+                }
+                for (long left = length; left > 0; ) {
+                    int n = in.read(body, 0, (int) Math.min(left, body.length));
+                    if (n < 0) {
+                        throw new EOFException("Connection closed in the middle of a response");
+                    }
+                    left -= n;
+                }
+                completed.incrementAndGet();
+                bodyBytes.addAndGet(length);
+            }
+        }
+    }
+
+    /**
+     * Keeps a number of streams open on one HTTP/2 connection until the end time, opening a new
+     * stream whenever one finishes.
+     */
+    private static void http2(String host, int port, String path, int inFlight, long end) throws IOException {
+        try (Socket s = new Socket(host, port)) {
+            s.setTcpNoDelay(true);
+            OutputStream out = new BufferedOutputStream(s.getOutputStream(), 65536);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 65536));
+            out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            // SETTINGS_INITIAL_WINDOW_SIZE and a connection WINDOW_UPDATE, both to the maximum
+            writeFrame(out, 4, 0, 0, new byte[] {0, 4, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff});
+            writeFrame(out, 8, 0, 0, new byte[] {0x7f, (byte) 0xff, 0, 0});
+            byte[] headers = requestHeaders(host, path);
+
+            int nextStream = 1;
+            int open = 0;
+            long unacknowledged = 0;
+            boolean stopping = false;
+            while (true) {
+                while (!stopping && open < inFlight) {
+                    // HEADERS with END_STREAM and END_HEADERS
+                    writeFrame(out, 1, 5, nextStream, headers);
+                    nextStream += 2;
+                    open++;
+                }
+                out.flush();
+                if (open == 0) {
+                    return;
+                }
+                int length = in.readUnsignedShort() << 8 | in.readUnsignedByte();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                in.readInt();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (type == 0) {
+                    bodyBytes.addAndGet(length);
+                    unacknowledged += length;
+                    if (unacknowledged > 1 << 24) {
+                        writeFrame(out, 8, 0, 0, intBytes((int) unacknowledged));
+                        unacknowledged = 0;
+                    }
+                } else if (type == 3) {
+                    failures.incrementAndGet();
+                    open--;
+                } else if (type == 7) {
+                    throw new IOException("Server sent GOAWAY");
+                }
+                if ((type == 0 || type == 1) && (flags & 1) != 0) {
+                    open--;
+                    completed.incrementAndGet();
+                }
+                stopping = System.nanoTime() >= end;
+            }
+        }
+    }
+
+    /**
+     * Connects, handshakes and disconnects in a loop until the end time.
+     */
+    private static void handshakes(SSLContext tls, String host, int port, boolean resume, long end) throws IOException {
+        while (System.nanoTime() < end) {
+            try (SSLSocket s = (SSLSocket) tls.getSocketFactory().createSocket(host, port)) {
+                s.setTcpNoDelay(true);
+                s.startHandshake();
+                if (!resume) {
+                    s.getSession().invalidate();
+                }
+            }
+            completed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Encodes GET request headers with HPACK literals that are never indexed, so every request
+     * is independent of the ones before it.
+     */
+    private static byte[] requestHeaders(String host, String path) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        // :method GET and :scheme http from the static table
+        block.write(0x82);
+        block.write(0x86);
+        // :path and :authority as literals with indexed names
+        block.write(0x04);
+        writeHpackString(block, path);
+        block.write(0x01);
+        writeHpackString(block, host);
+        return block.toByteArray();
+    }
+
+    private static void writeHpackString(ByteArrayOutputStream block, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length >= 127) {
+            throw new IllegalArgumentException("Header value too long: " + value);
+        }
+        block.write(bytes.length);
+        block.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeFrame(OutputStream out, int type, int flags, int stream, byte[] payload) throws IOException {
+        out.write(new byte[] {(byte) (payload.length >>> 16), (byte) (payload.length >>> 8), (byte) payload.length,
+                (byte) type, (byte) flags,
+                (byte) (stream >>> 24), (byte) (stream >>> 16), (byte) (stream >>> 8), (byte) stream});
+        out.write(payload);
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("Connection closed in the middle of a response");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static SSLContext trustingContext() throws GeneralSecurityException {
+        TrustManager trustAll = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] {trustAll}, null);
+        return context;
+    }
+}
@@ -1,8 +1,13 @@
 let postForm;
+// chirps currently shown, by chirpKey, and the store version they reflect
+let timeline = new Map();
+let timelineVersion = null;
+let stream = null;
 // Fetch and display all chirps when the page loads
 document.addEventListener("DOMContentLoaded", function () {
     postForm = document.querySelector("#post-form");
     fetchAndDisplayChirps();
+    openStream();
     
     postForm.addEventListener("submit", function (event) {
     event.preventDefault(); // Prevent form default submission
@@ -38,7 +43,9 @@ function postChirps() {
             console.log("Chirp posted successfully:", data);
             document.querySelector("#username").value = ""; // Clear form inputs
             document.querySelector("#content").value = "";
-            fetchAndDisplayChirps(); // Refresh the timeline with all chirps
+            if (!stream || stream.readyState !== EventSource.OPEN) {
+                syncChirps(); // No live stream, so fetch only what changed since the timeline was loaded
+            }
         })
         .catch((error) => {
             console.error(error.message);
@@ -60,12 +67,12 @@ function fetchAndDisplayChirps() {
             return response.json();
         })
         .then((data) => {
-            if (Array.isArray(data.chirps) && data.chirps.length > 0) {
-                displayChirps(data.chirps);
-            } else {
-                const timeline = document.querySelector("#timeline");
-                timeline.innerHTML = "<p>No chirps available. Be the first to post!</p>";
+            timeline = new Map();
+            timelineVersion = typeof data.version === "number" ? data.version : null;
+            if (Array.isArray(data.chirps)) {
+                data.chirps.forEach((chirp) => timeline.set(chirpKey(chirp.id, chirp.server), chirp));
             }
+            renderTimeline();
         })
         .catch((error) => {
             console.error(error.message);
@@ -73,6 +80,88 @@ function fetchAndDisplayChirps() {
         });
 }
 
+function syncChirps() {
+    if (timelineVersion === null) {
+        fetchAndDisplayChirps();
+        return;
+    }
+    fetch(`http://localhost:24477/chirps?since_version=${timelineVersion}`, {
+        method: "GET",
+        headers: {
+            "Accept": "application/json"
+        }
+    })
+        .then((response) => {
+            if (!response.ok) {
+                throw new Error(`Failed to fetch changes: ${response.statusText}`);
+            }
+            return response.json();
+        })
+        .then((data) => {
+            if (data.resync) {
+                fetchAndDisplayChirps(); // Too far behind, reload everything
+                return;
+            }
+            data.changes.forEach((change) => {
+                if (change.op === "delete") {
+                    timeline.delete(chirpKey(change.id));
+                } else {
+                    timeline.set(chirpKey(change.id), change.chirp);
+                }
+            });
+            timelineVersion = data.version;
+            renderTimeline();
+        })
+        .catch((error) => {
+            console.error(error.message);
+            fetchAndDisplayChirps();
+        });
+}
+
+// Receive new, updated and deleted chirps as they happen instead of re-polling
+function openStream() {
+    if (!window.EventSource) {
+        return;
+    }
+    stream = new EventSource("http://localhost:24477/chirps/stream");
+    // catch up on anything that changed between loading the timeline and the stream opening
+    stream.addEventListener("open", () => syncChirps());
+    ["add", "update", "delete"].forEach((op) => {
+        stream.addEventListener(op, (event) => applyStreamEvent(op, event));
+    });
+    stream.addEventListener("resync", () => fetchAndDisplayChirps());
+}
+
+function applyStreamEvent(op, event) {
+    const version = Number(event.lastEventId);
+    if (timelineVersion === null || version <= timelineVersion) {
+        return; // already part of the timeline we have
+    }
+    const data = JSON.parse(event.data);
+    if (op === "delete") {
+        timeline.delete(chirpKey(data.id));
+    } else {
+        timeline.set(chirpKey(data.id), data);
+    }
+    timelineVersion = version;
+    renderTimeline();
+}
+
+// IDs are only unique per server, so federated chirps (which carry their server) are kept
+// apart from local ones and from each other
+function chirpKey(id, server) {
+    return server ? `${server}/${id}` : String(id);
+}
+
+function renderTimeline() {
+    if (timeline.size > 0) {
+        displayChirps(Array.from(timeline.values()));
+    } else {
+        const timelineDiv = document.querySelector("#timeline");
+        timelineDiv.innerHTML = "<p>No chirps available. Be the first to post!</p>";
+    }
+}
+
 function displayChirps(chirps) {
     const timeline = document.querySelector("#timeline");
     timeline.innerHTML = ""; // Clear the timeline before appending new chirps